@@ -8,7 +8,25 @@ import pandas as pd
 
 from sklearn.model_selection import KFold
 
-def create_dataset(data, color_space, predicted_color=None):
+from seed_records import read_seed_data
+
+# median columns of the seed summaries (SeedUtils.printSeedSummaries)
+SUMMARY_MEDIANS = {
+    'rgb': ['rgb_blue_median', 'rgb_green_median', 'rgb_red_median'],
+    'lab': ['lab_l_median', 'lab_a_median', 'lab_b_median'],
+    'hsv': ['hsv_h_median', 'hsv_s_median', 'hsv_v_median'],
+}
+
+def is_summary(data):
+    return 'rgb_blue_median' in data.columns
+
+def seed_medians(data, color_space):
+    if is_summary(data):
+        seeds = data.set_index(['image', 'seed_number']).sort_index()
+        features = seeds[SUMMARY_MEDIANS[color_space]].copy()
+        features.columns = ['channel1', 'channel2', 'channel3']
+        return features, seeds['color']
+
     buffered_data = data[['image', 'seed_number', 'color']].copy()
     channels = data[['blue', 'green', 'red']].values
     channels = channels.astype(np.uint8).reshape(1, channels.shape[0], channels.shape[1])
@@ -20,10 +38,15 @@ def create_dataset(data, color_space, predicted_color=None):
     buffered_data['channel2'] = channels[0, :, 1]
     buffered_data['channel3'] = channels[0, :, 2]
 
+    features = buffered_data.groupby(['image', 'seed_number'])[['channel1', 'channel2', 'channel3']]\
+            .median().sort_index()
+    answers = buffered_data.groupby(['image', 'seed_number'])['color'].min().sort_index()
+    return features, answers
+
+def create_dataset(data, color_space, predicted_color=None):
+    features, answers = seed_medians(data, color_space)
+
     if predicted_color is None:
-        features = buffered_data.groupby(['image', 'seed_number'])[['channel1', 'channel2', 'channel3']]\
-                .median().sort_index()
-        answers = buffered_data.groupby(['image', 'seed_number'])['color'].min().sort_index()
         if color_space == 'rgb':
             print("%d seeds" % (len(features)))
             print("Purple: %d, red: %d, white %d" % (sum(answers == 'purple'), sum(answers == 'red'), sum(answers == 'white')))
@@ -31,9 +54,6 @@ def create_dataset(data, color_space, predicted_color=None):
         features.loc[answers == 'red', 'answer'] = 1
         features.loc[answers == 'white', 'answer'] = 2
     else:
-        features = buffered_data.groupby(['image', 'seed_number'])[['channel1', 'channel2', 'channel3']]\
-                .median().sort_index()
-        answers = buffered_data.groupby(['image', 'seed_number'])['color'].min().sort_index()
         features['answer'] = 1
         features.loc[answers != predicted_color, 'answer'] = 0
 
@@ -46,7 +66,8 @@ def filter_data(data, photo_info, type):
     result = data[data.type == type].copy()
     result['image'] = result.file.apply(lambda x: x.split('/')[-1])
     result = result.join(photo_info.set_index('image'), on=['image'], how='inner')
-    result = result[['red', 'green', 'blue', 'image', 'seed_number', 'color']]
+    channels = sum(SUMMARY_MEDIANS.values(), []) if is_summary(result) else ['red', 'green', 'blue']
+    result = result[channels + ['image', 'seed_number', 'color']]
     return result
 
 def grid_search(data, color=None):
@@ -111,11 +132,11 @@ parser = argparse.ArgumentParser(description='Train the seed classifier, choose
 parser.add_argument('--photo-info', dest='photo_info',
         required=True, help='Tsv file containing images\' filenames with colors')
 parser.add_argument('--seed-data', dest='seed_data',
-        required=True, help='Tsv file containing seed pixels')
+        required=True, help='Tsv file containing seed pixels or seed summaries, or the prefix of the seed records')
 
 args = parser.parse_args()
 photo_info = pd.read_csv(args.photo_info, sep='\t')
-seed_data = pd.read_csv(args.seed_data, sep='\t')
+seed_data = read_seed_data(args.seed_data)
 
 source_data = filter_data(seed_data, photo_info, 'source')
 calibrated_data = filter_data(seed_data, photo_info, 'calibrated')
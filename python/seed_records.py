@@ -0,0 +1,73 @@
+#!/usr/bin/env python3
+
+# Reader for the seed records written by TsvSeedRecordWriter and BinarySeedRecordWriter:
+# PREFIX_images.tsv, PREFIX_seeds.tsv and PREFIX_pixels.tsv or PREFIX_pixels.bin
+
+import argparse
+import os
+
+import numpy as np
+import pandas as pd
+
+MAGIC = b'SEEDPIX1'
+PIXEL_COLUMNS = [('image_id', '<i4'), ('seed_number', '<i4'), ('x', '<i4'), ('y', '<i4'),
+                 ('blue', 'u1'), ('green', 'u1'), ('red', 'u1')]
+
+def iterate_pixel_blocks(path):
+    with open(path, 'rb') as f:
+        if f.read(len(MAGIC)) != MAGIC:
+            raise ValueError('%s is not a seed pixels file' % path)
+        while True:
+            header = f.read(4)
+            if len(header) < 4:
+                break
+            n = int(np.frombuffer(header, '<i4')[0])
+            block = {}
+            for name, dtype in PIXEL_COLUMNS:
+                block[name] = np.fromfile(f, dtype=dtype, count=n)
+            yield pd.DataFrame(block)
+
+def read_pixels(prefix):
+    if os.path.exists(prefix + '_pixels.bin'):
+        blocks = list(iterate_pixel_blocks(prefix + '_pixels.bin'))
+        if not blocks:
+            return pd.DataFrame({name: np.array([], dtype=dtype) for name, dtype in PIXEL_COLUMNS})
+        return pd.concat(blocks, ignore_index=True)
+    return pd.read_csv(prefix + '_pixels.tsv', sep='\t')
+
+def read_seed_records(prefix):
+    """One row per pixel with the seed and image fields, like the seed log of SeedUtils.printSeeds"""
+    images = pd.read_csv(prefix + '_images.tsv', sep='\t')
+    seeds = pd.read_csv(prefix + '_seeds.tsv', sep='\t')
+    pixels = read_pixels(prefix)
+    result = pixels.merge(seeds, on=['image_id', 'seed_number'], how='left')
+    return result.merge(images, on='image_id', how='left')
+
+def read_seed_data(path):
+    """Either the seed log (TSV) or the prefix of the seed records"""
+    if os.path.isfile(path):
+        return pd.read_csv(path, sep='\t')
+    return read_seed_records(path)
+
+
+def check_round_trip(binary_prefix, tsv_prefix):
+    """The records of the same run written by BinarySeedRecordWriter and TsvSeedRecordWriter must be equal"""
+    binary = read_seed_records(binary_prefix)
+    tsv = read_seed_records(tsv_prefix)
+    if list(binary.columns) != list(tsv.columns):
+        raise ValueError('Different columns: %s and %s' % (list(binary.columns), list(tsv.columns)))
+    if len(binary) != len(tsv):
+        raise ValueError('Different number of pixels: %d and %d' % (len(binary), len(tsv)))
+    for name, dtype in PIXEL_COLUMNS:
+        if not np.array_equal(binary[name].to_numpy(dtype='int64'), tsv[name].to_numpy(dtype='int64')):
+            raise ValueError('Different %s' % name)
+    pd.testing.assert_frame_equal(binary.drop(columns=[name for name, _ in PIXEL_COLUMNS]),
+                                  tsv.drop(columns=[name for name, _ in PIXEL_COLUMNS]))
+    return len(binary)
+
+if __name__ == '__main__':
+    parser = argparse.ArgumentParser(description='Check that the binary and the TSV seed records of a run are equal')
+    parser.add_argument('binary_prefix', help='prefix of the BinarySeedRecordWriter output')
+    parser.add_argument('tsv_prefix', help='prefix of the TsvSeedRecordWriter output')
+    args = parser.parse_args()
+    print('%d pixels are equal' % check_round_trip(args.binary_prefix, args.tsv_prefix))
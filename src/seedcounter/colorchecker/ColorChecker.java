@@ -11,10 +11,12 @@ import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.Point;
 import org.opencv.core.Scalar;
+import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 import seedcounter.colormetric.CellColors;
 import seedcounter.colormetric.EuclideanLab;
 import seedcounter.colormetric.EuclideanRGB;
+import seedcounter.common.MaskedImage;
 import seedcounter.common.Quad;
 import seedcounter.colormetric.Color;
 import seedcounter.regression.ColorSpace;
@@ -37,6 +39,10 @@ public class ColorChecker {
     private final Integer yScale;
     private final Integer yColorPatchSize;
 
+    // the color patch centers as the fractions of the color checker width and height
+    private static final List<Double> X_CENTERS = Arrays.asList(0.143, 0.381, 0.613, 0.862);
+    private static final List<Double> Y_CENTERS = Arrays.asList(0.160, 0.305, 0.440, 0.580, 0.717, 0.856);
+
     private static final Double REAL_WIDTH = 64.0; // millimeters
     private static final Double REAL_HEIGHT = 108.0; // millimeters
     private static final List<Integer> TOP_INDEXES = Arrays.asList(0, 1, 2);
@@ -64,14 +70,11 @@ public class ColorChecker {
         yScale = (int) (0.02 * height);
         yColorPatchSize = yScale / 8;
 
-        List<Double> xCenters = Arrays.asList(0.143, 0.381, 0.613, 0.862);
-        List<Double> yCenters = Arrays.asList(0.160, 0.305, 0.440, 0.580, 0.717, 0.856);
-
         centers = new ArrayList<>();
         for (int row = 0; row < rowCount(); ++row) {
             List<Point> points = new ArrayList<>();
             for (int col = 0; col < colCount(); ++col) {
-                Point point = new Point(xCenters.get(col) * width, yCenters.get(row) * height);
+                Point point = new Point(X_CENTERS.get(col) * width, Y_CENTERS.get(row) * height);
                 if (withCorrectionByReference) {
                     point = correctByReference(point, row, col);
                 }
@@ -88,6 +91,11 @@ public class ColorChecker {
         return REAL_WIDTH * REAL_HEIGHT / quad.getArea();
     }
 
+    // millimeters
+    public static Size realSize() {
+        return new Size(REAL_WIDTH, REAL_HEIGHT);
+    }
+
     public Mat calibrate(Mat srcImage, RegressionModel model,
                          ColorSpace featuresSpace, ColorSpace targetSpace) throws IllegalStateException {
         Mat result = srcImage.clone();
@@ -129,6 +137,42 @@ public class ColorChecker {
         return result;
     }
 
+    // the same for the masked pixels only
+    public MaskedImage calibrate(MaskedImage srcImage, RegressionModel model,
+                                 ColorSpace featuresSpace, ColorSpace targetSpace) throws IllegalStateException {
+        List<DoubleBuffer> train = new ArrayList<>();
+        List<DoubleBuffer> answers = new ArrayList<>();
+
+        calculateTrainAndAnswers(featuresSpace, targetSpace, train, answers);
+
+        try {
+            model.train(train, answers);
+        } catch (SingularMatrixException e) {
+            throw new IllegalStateException("Couldn't calibrate colors given this reference");
+        }
+
+        byte[] colors = srcImage.getColors();
+        byte[] result = new byte[colors.length];
+        double[] color = new double[3];
+        DoubleBuffer buffer = DoubleBuffer.wrap(color);
+        for (int i = 0; i < colors.length; i += 3) {
+            for (int c = 0; c < 3; ++c) {
+                color[c] = colors[i + c] & 0xFF;
+            }
+            featuresSpace.convertFromBGR(buffer, true);
+            model.calibrate(buffer);
+            // the model writes the color with the relative put
+            buffer.rewind();
+            targetSpace.convertToBGR(buffer);
+            // rounded and saturated as by convertTo
+            for (int c = 0; c < 3; ++c) {
+                result[i + c] = (byte) Math.max(0.0, Math.min(255.0, Math.rint(color[c])));
+            }
+        }
+
+        return srcImage.withColors(result);
+    }
+
     // a wrapper for the getTransformationDeviation method in AbstractOLS class
     public double getTransformationDeviation(RegressionModel model, ColorSpace featuresSpace) throws IllegalStateException {
         List<DoubleBuffer> train = new ArrayList<>();
@@ -495,11 +539,20 @@ public class ColorChecker {
         );
     }
 
-    private int rowCount() {
+    static int rowCount() {
         return BGR_REFERENCE_COLORS.size();
     }
 
-    private int colCount() {
+    static int colCount() {
         return BGR_REFERENCE_COLORS.get(0).size();
     }
+
+    static Scalar referenceColor(int row, int col) {
+        return BGR_REFERENCE_COLORS.get(row).get(col);
+    }
+
+    // the center of the color patch in the color checker of the unit size
+    static Point patchCenter(int row, int col) {
+        return new Point(X_CENTERS.get(col), Y_CENTERS.get(row));
+    }
 }
\ No newline at end of file
@@ -0,0 +1,9 @@
+package seedcounter.colorchecker;
+
+import org.opencv.core.Mat;
+import seedcounter.common.Quad;
+
+public interface ColorCheckerDetector {
+    // returns the quad of the whole image if the color checker isn't found
+    Quad findColorChecker(Mat image);
+}
@@ -0,0 +1,102 @@
+package seedcounter.colorchecker;
+
+import java.util.Collections;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfInt;
+import org.opencv.imgproc.Imgproc;
+
+/*
+ * A cheap check whether an image contains a color checker, made on a strongly
+ * downscaled image before running the keypoint detection. The color checker
+ * gives many saturated square blobs of the reference colors and a wide
+ * spread of hues.
+ */
+public class ColorCheckerPresence {
+    private static final int WORK_SIZE = 400;
+    private static final int HUE_BINS = 18;
+    private static final double MIN_BIN_FRACTION = 0.02;
+    private static final int EXPECTED_PATCHES = 8;
+    private static final int EXPECTED_HUES = 6;
+    private static final double PATCH_WEIGHT = 0.7;
+    private static final double DEFAULT_THRESHOLD = 0.5;
+
+    private final FindColorCheckerByPatches patches;
+    private final double threshold;
+
+    public ColorCheckerPresence() {
+        this(DEFAULT_THRESHOLD);
+    }
+
+    // threshold - the minimal confidence for the color checker to be considered present
+    public ColorCheckerPresence(double threshold) {
+        this.patches = new FindColorCheckerByPatches();
+        this.threshold = threshold;
+    }
+
+    public Decision check(Mat image) {
+        Mat small = FindColorCheckerByPatches.downscale(image,
+                FindColorCheckerByPatches.workScale(image, WORK_SIZE));
+
+        int recognizedPatches = patches.recognizePatches(small).size();
+        int hues = countHues(small);
+        small.release();
+
+        double patchScore = Math.min(1.0, (double) recognizedPatches / EXPECTED_PATCHES);
+        double hueScore = Math.min(1.0, (double) hues / EXPECTED_HUES);
+        double confidence = PATCH_WEIGHT * patchScore + (1.0 - PATCH_WEIGHT) * hueScore;
+
+        return new Decision(confidence >= threshold, confidence);
+    }
+
+    // the number of hue histogram bins holding a noticeable part of the saturated pixels
+    private int countHues(Mat image) {
+        Mat hsv = new Mat();
+        Imgproc.cvtColor(image, hsv, Imgproc.COLOR_BGR2HSV);
+        Mat saturated = FindColorCheckerByPatches.saturationMask(hsv);
+
+        Mat histogram = new Mat();
+        Imgproc.calcHist(Collections.singletonList(hsv), new MatOfInt(0), saturated, histogram,
+                new MatOfInt(HUE_BINS), new MatOfFloat(0.0f, 180.0f));
+        hsv.release();
+        saturated.release();
+
+        float[] counts = new float[HUE_BINS];
+        histogram.get(0, 0, counts);
+        histogram.release();
+
+        double total = 0.0;
+        for (float count : counts) {
+            total += count;
+        }
+
+        int hues = 0;
+        for (float count : counts) {
+            if (total > 0.0 && count / total >= MIN_BIN_FRACTION) {
+                ++hues;
+            }
+        }
+
+        return hues;
+    }
+
+    public static class Decision {
+        private final boolean present;
+        private final double confidence;
+
+        public Decision(boolean present, double confidence) {
+            this.present = present;
+            this.confidence = confidence;
+        }
+
+        public boolean isPresent() {
+            return present;
+        }
+
+        // from 0.0 (no color checker signs) to 1.0
+        public double getConfidence() {
+            return confidence;
+        }
+    }
+}
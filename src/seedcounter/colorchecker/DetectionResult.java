@@ -0,0 +1,29 @@
+package seedcounter.colorchecker;
+
+import seedcounter.common.Quad;
+
+public class DetectionResult {
+    private final Quad quad;
+    private final double metric;
+    private final int attempts;
+
+    public DetectionResult(Quad quad, double metric, int attempts) {
+        this.quad = quad;
+        this.metric = metric;
+        this.attempts = attempts;
+    }
+
+    public Quad getQuad() {
+        return quad;
+    }
+
+    // the Lab deviation of the found color checker from the reference
+    public double getMetric() {
+        return metric;
+    }
+
+    // the number of detection passes run
+    public int getAttempts() {
+        return attempts;
+    }
+}
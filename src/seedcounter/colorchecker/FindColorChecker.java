@@ -1,7 +1,7 @@
 package seedcounter.colorchecker;
 
 import java.util.*;
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 
 import org.opencv.calib3d.Calib3d;
@@ -13,13 +13,19 @@ import org.opencv.imgproc.Imgproc;
 import seedcounter.common.Quad;
 
 
-public class FindColorChecker {
+public class FindColorChecker implements ColorCheckerDetector {
+    // the reference image extensions tried by findBestFitColorChecker
+    private static final List<Double> SCALES = Arrays.asList(0.05, 0.1, 0.2);
+    // the size of the extracted color checker used for the quick checks, proportional to the real size
+    private static final Size CANONICAL_SIZE = new Size(256, 432);
+
     private final Mat referenceImage;
     private final MatchingModel matchingModel;
     private final MatOfKeyPoint referenceKeypoints;
     private final MatOfKeyPoint referenceDescriptors;
     private final Feature2D detector;
     private final Feature2D extractor;
+    private final RefineColorChecker refineColorChecker = new RefineColorChecker();
 
     public FindColorChecker(String referenceFile, MatchingModel matchingModel) {
         referenceImage = Imgcodecs.imread(referenceFile,
@@ -36,50 +42,117 @@ public class FindColorChecker {
     }
 
     public Quad findBestFitColorChecker(Mat image) {
+        return findBestFitColorChecker(image, 0.0, Long.MAX_VALUE).getQuad();
+    }
+
+    /*
+     * acceptanceThreshold - stop trying the scales as soon as the Lab deviation
+     *     of the found color checker from the reference is below the threshold
+     * timeBudget - milliseconds, a scale is tried only if its estimated time fits into the rest
+     *     of the budget, otherwise the best quad found so far is returned (the first attempt
+     *     is always completed). A scale pass is estimated as two first attempts (the full image
+     *     and the splice detections) or the longest timed pass if it took more. A pass is also
+     *     dropped between its two detections if the budget is spent by then.
+     */
+    public DetectionResult findBestFitColorChecker(Mat image, double acceptanceThreshold, long timeBudget) {
+        long start = System.nanoTime();
+        long budget = TimeUnit.MILLISECONDS.toNanos(timeBudget);
+
         Quad bestQuad = findColorChecker(image);
-        Mat extractedColorChecker = bestQuad.getTransformedField(image);
-        ColorChecker colorChecker = new ColorChecker(extractedColorChecker,
-                false, false);
-        double bestMetric = colorChecker.labDeviationFromReference();
-        extractedColorChecker.release();
+        double bestMetric = labDeviation(image, bestQuad);
+        int attempts = 1;
+        long passEstimate = 2 * (System.nanoTime() - start);
+
+        for (double scale : SCALES) {
+            if (bestMetric < acceptanceThreshold || System.nanoTime() - start + passEstimate > budget) {
+                break;
+            }
 
-        for (double scale : Arrays.asList(0.05, 0.1, 0.2)) {
-            Quad quad = findColorChecker(image, scale);
-            extractedColorChecker = quad.getTransformedField(image);
-            colorChecker = new ColorChecker(extractedColorChecker,
-                    false, false);
-            double metric = colorChecker.labDeviationFromReference();
-            extractedColorChecker.release();
+            long passStart = System.nanoTime();
+            Optional<Quad> scaledQuad = findColorChecker(image, scale, start + budget);
+            if (!scaledQuad.isPresent()) {
+                break;
+            }
+            Quad quad = scaledQuad.get();
+            double metric = labDeviation(image, quad);
+            passEstimate = Math.max(passEstimate, System.nanoTime() - passStart);
+            ++attempts;
             if (metric < bestMetric) {
                 bestMetric = metric;
                 bestQuad = quad;
             }
         }
 
-        return bestQuad;
+        return new DetectionResult(bestQuad, bestMetric, attempts);
+    }
+
+    private double labDeviation(Mat image, Quad quad) {
+        return labDeviation(image, quad, image.size());
     }
 
+    // the Lab deviation of the color checker extracted at CANONICAL_SIZE, without the full size warp
+    static double canonicalLabDeviation(Mat image, Quad quad) {
+        return labDeviation(image, quad, CANONICAL_SIZE);
+    }
+
+    private static double labDeviation(Mat image, Quad quad, Size size) {
+        Mat extractedColorChecker = quad.getTransformedField(image, size);
+        ColorChecker colorChecker = new ColorChecker(extractedColorChecker,
+                false, false);
+        double metric = colorChecker.labDeviationFromReference();
+        extractedColorChecker.release();
+
+        return metric;
+    }
+
+    @Override
     public Quad findColorChecker(Mat image) {
-        return getQuad(getHomography(image), 0.0).orElse(fullImageQuad(image));
+        return getQuad(getHomography(image, true), 0.0).orElse(fullImageQuad(image));
+    }
+
+    /*
+     * an opt-in alternative to findColorChecker(image, scale): the first detection pass refined
+     * by the color patch layout instead of the second pass, the refined quad is kept only
+     * if its Lab deviation from the reference is lower (both compared at CANONICAL_SIZE)
+     */
+    public Quad findRefinedColorChecker(Mat image) {
+        Optional<Quad> quad = getQuad(getHomography(image, true), 0.0);
+        if (!quad.isPresent()) {
+            return fullImageQuad(image);
+        }
+
+        Quad refined = refineColorChecker.refine(image, quad.get());
+
+        return canonicalLabDeviation(image, refined) < canonicalLabDeviation(image, quad.get())
+                ? refined : quad.get();
     }
 
     public Quad findColorChecker(Mat image, double scale) {
-        Optional<Quad> quad1 = getQuad(getHomography(image), scale);
+        return findColorChecker(image, scale, System.nanoTime() + Long.MAX_VALUE).get();
+    }
+
+    // deadline - in System.nanoTime() terms, empty if it is passed before the splice detection
+    private Optional<Quad> findColorChecker(Mat image, double scale, long deadline) {
+        Optional<Quad> quad1 = getQuad(getHomography(image, true), scale);
         if (!quad1.isPresent()) {
-            return fullImageQuad(image);
+            return Optional.of(fullImageQuad(image));
+        }
+        if (System.nanoTime() - deadline > 0) {
+            return Optional.empty();
         }
 
         image = imageSplice(image, quad1.get());
-        Optional<Quad> quad2 = getQuad(getHomography(image), 0.0);
+        // the region prior is relative to the whole image, so it isn't applied to the splice
+        Optional<Quad> quad2 = getQuad(getHomography(image, false), 0.0);
         image.release();
         if (!quad2.isPresent()) {
-            return fullImageQuad(image);
+            return Optional.of(fullImageQuad(image));
         }
 
-        return shiftQuad(quad2.get(), quad1.get());
+        return Optional.of(shiftQuad(quad2.get(), quad1.get()));
     }
 
-    private Quad fullImageQuad(Mat image) {
+    static Quad fullImageQuad(Mat image) {
         return new Quad(
                 new Point(0.0, 0.0),
                 new Point(image.cols() - 1, 0.0),
@@ -88,12 +161,11 @@ public class FindColorChecker {
         );
     }
 
-    private Optional<Mat> getHomography(Mat image) {
-        MatOfKeyPoint keypoints = new MatOfKeyPoint();
+    private Optional<Mat> getHomography(Mat image, boolean withRegionPrior) {
         if (image.rows() < 100 || image.cols() < 50) {
             return Optional.empty();
         }
-        detector.detect(image, keypoints);
+        MatOfKeyPoint keypoints = matchingModel.detect(image, withRegionPrior);
         if ((int) keypoints.size().width * (int) keypoints.size().height < 2) {
             return Optional.empty();
         }
@@ -154,22 +226,27 @@ public class FindColorChecker {
     }
 
     private Optional<Quad> getQuad(Optional<Mat> homography, double scale) {
-        if (!homography.isPresent()) {
-            return Optional.empty();
-        }
+        return homography.map(h -> referenceQuad(h, referenceImage.size(), scale));
+    }
 
+    // the reference image corners, extended by the scale, mapped by the homography
+    static Quad referenceQuad(Mat homography, Size referenceSize, double scale) {
         Mat corners = new Mat(4, 1, CvType.CV_32FC2);
         Mat referenceCorners = new Mat(4, 1, CvType.CV_32FC2);
 
-        referenceCorners.put(0, 0, -scale * referenceImage.cols(), -scale * referenceImage.rows());
-        referenceCorners.put(1, 0, (1.0 + scale) * referenceImage.cols(), -scale * referenceImage.rows());
-        referenceCorners.put(2, 0, (1.0 + scale) * referenceImage.cols(), (1.0 + scale) * referenceImage.rows());
-        referenceCorners.put(3, 0, -scale * referenceImage.cols(), (1.0 + scale) * referenceImage.rows());
+        referenceCorners.put(0, 0, -scale * referenceSize.width, -scale * referenceSize.height);
+        referenceCorners.put(1, 0, (1.0 + scale) * referenceSize.width, -scale * referenceSize.height);
+        referenceCorners.put(2, 0, (1.0 + scale) * referenceSize.width, (1.0 + scale) * referenceSize.height);
+        referenceCorners.put(3, 0, -scale * referenceSize.width, (1.0 + scale) * referenceSize.height);
 
-        Core.perspectiveTransform(referenceCorners, corners, homography.get());
+        Core.perspectiveTransform(referenceCorners, corners, homography);
 
-        return Optional.of(new Quad(new Point(corners.get(0, 0)),new Point(corners.get(1, 0)),
-                new Point(corners.get(2, 0)), new Point(corners.get(3, 0))));
+        Quad quad = new Quad(new Point(corners.get(0, 0)),new Point(corners.get(1, 0)),
+                new Point(corners.get(2, 0)), new Point(corners.get(3, 0)));
+        corners.release();
+        referenceCorners.release();
+
+        return quad;
     }
 
     public void fillColorChecker(Mat image, Quad quad) {
@@ -235,48 +312,55 @@ public class FindColorChecker {
         );
     }
 
+    /* the mean color outside of the quad, the colors deviating from the mean
+     * more than TOLERANCE in any channel are iteratively excluded
+     */
     private Scalar getBackgroundColor(Mat image, Quad quad) {
-        List<double[]> colors = new ArrayList<>();
-        double sumBlue = 0.0;
-        double sumGreen = 0.0;
-        double sumRed = 0.0;
-
-        while (colors.size() < 1000) {
-            double x = ThreadLocalRandom.current().nextDouble(0.0, image.cols());
-            double y = ThreadLocalRandom.current().nextDouble(0.0, image.rows());
-
-            if (image.get((int) x, (int) y) != null && !quad.isInside(new Point(x, y))) {
-                colors.add(image.get((int) x, (int) y));
-                sumBlue += colors.get(colors.size() - 1)[0];
-                sumGreen += colors.get(colors.size() - 1)[1];
-                sumRed += colors.get(colors.size() - 1)[2];
-            }
+        final int MAX_SIZE = 512;
+        final int ITERATIONS = 10;
+        final double TOLERANCE = 25.0;
+
+        double factor = Math.min(1.0, (double) MAX_SIZE / Math.max(image.rows(), image.cols()));
+        Mat small = new Mat();
+        Imgproc.resize(image, small, new Size(), factor, factor, Imgproc.INTER_AREA);
+
+        Point[] quadPoints = quad.getPoints();
+        Point[] smallPoints = new Point[quadPoints.length];
+        for (int i = 0; i < quadPoints.length; ++i) {
+            smallPoints[i] = new Point(quadPoints[i].x * factor, quadPoints[i].y * factor);
+        }
+
+        Mat mask = new Mat(small.size(), CvType.CV_8UC1, new Scalar(255));
+        Imgproc.fillConvexPoly(mask, new MatOfPoint(smallPoints), new Scalar(0));
+        if (Core.countNonZero(mask) == 0) {
+            mask.setTo(new Scalar(255));
         }
-        double meanBlue = sumBlue / colors.size();
-        double meanGreen = sumGreen / colors.size();
-        double meanRed = sumRed / colors.size();
-
-        for (int i = 0; i < 10; ++i) {
-            List<double[]> buffer = new ArrayList<>();
-            sumBlue = 0.0;
-            sumGreen = 0.0;
-            sumRed = 0.0;
-            for (double[] c : colors) {
-                if (Math.abs(c[0] - meanBlue) <= 25 &&
-                    Math.abs(c[1] - meanGreen) <= 25 &&
-                    Math.abs(c[2] - meanRed) <= 25) {
-                    sumBlue += c[0];
-                    sumGreen += c[1];
-                    sumRed += c[2];
-                    buffer.add(c);
-                }
+
+        Scalar mean = Core.mean(small, mask);
+        Mat inliers = new Mat();
+
+        for (int i = 0; i < ITERATIONS; ++i) {
+            Core.inRange(small, shiftColor(mean, -TOLERANCE), shiftColor(mean, TOLERANCE), inliers);
+            Core.bitwise_and(inliers, mask, inliers);
+            if (Core.countNonZero(inliers) == 0) {
+                break;
             }
-            colors = buffer;
-            meanBlue = sumBlue / colors.size();
-            meanGreen = sumGreen / colors.size();
-            meanRed = sumRed / colors.size();
+
+            Scalar newMean = Core.mean(small, inliers);
+            if (Arrays.equals(newMean.val, mean.val)) {
+                break;
+            }
+            mean = newMean;
         }
 
-        return new Scalar(meanBlue, meanGreen, meanRed);
+        small.release();
+        mask.release();
+        inliers.release();
+
+        return new Scalar(mean.val[0], mean.val[1], mean.val[2]);
+    }
+
+    private Scalar shiftColor(Scalar color, double shift) {
+        return new Scalar(color.val[0] + shift, color.val[1] + shift, color.val[2] + shift);
     }
 }
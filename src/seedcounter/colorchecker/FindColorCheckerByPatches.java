@@ -0,0 +1,219 @@
+package seedcounter.colorchecker;
+
+import java.nio.DoubleBuffer;
+import java.util.*;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.*;
+import org.opencv.imgproc.Imgproc;
+import seedcounter.colormetric.Color;
+import seedcounter.colormetric.EuclideanLab;
+import seedcounter.common.Quad;
+
+/*
+ * Color checker search without keypoints: the saturated square blobs are taken as
+ * the color patch candidates, recognized by the reference colors and the known
+ * patch layout is fitted to them. Works on a downscaled image.
+ */
+public class FindColorCheckerByPatches implements ColorCheckerDetector {
+    private static final int WORK_SIZE = 800;
+    private static final double MIN_SATURATION = 80.0;
+    private static final double MIN_VALUE = 40.0;
+    private static final double MIN_PATCH_AREA = 30.0; // pixels of the downscaled image
+    private static final double MAX_PATCH_AREA = 0.02; // fraction of the downscaled image
+    private static final double MAX_ASPECT_RATIO = 2.0;
+    private static final double MIN_RECTANGULARITY = 0.7;
+    private static final double MAX_COLOR_DISTANCE = 30.0; // Lab
+    private static final double REPROJECTION_THRESHOLD = 0.02; // fraction of the downscaled image
+
+    private final double maxColorDistance;
+    private final List<Color> referenceColors;
+
+    public FindColorCheckerByPatches() {
+        this(MAX_COLOR_DISTANCE);
+    }
+
+    /*
+     * maxColorDistance - the maximal Lab distance between a patch candidate
+     *     and the reference color for the candidate to be recognized
+     */
+    public FindColorCheckerByPatches(double maxColorDistance) {
+        this.maxColorDistance = maxColorDistance;
+
+        referenceColors = new ArrayList<>();
+        for (int row = 0; row < ColorChecker.rowCount(); ++row) {
+            for (int col = 0; col < ColorChecker.colCount(); ++col) {
+                referenceColors.add(new Color(DoubleBuffer.wrap(ColorChecker.referenceColor(row, col).val)));
+            }
+        }
+    }
+
+    @Override
+    public Quad findColorChecker(Mat image) {
+        double factor = workScale(image);
+        Mat small = downscale(image, factor);
+        Optional<Mat> homography = getHomography(small);
+        small.release();
+
+        if (!homography.isPresent()) {
+            return FindColorChecker.fullImageQuad(image);
+        }
+
+        Quad quad = FindColorChecker.referenceQuad(homography.get(), new Size(1.0, 1.0), 0.0);
+        homography.get().release();
+
+        return scaleQuad(quad, 1.0 / factor);
+    }
+
+    // homography from the color checker of the unit size to the image
+    private Optional<Mat> getHomography(Mat image) {
+        Map<Integer, Point> centers = recognizePatches(image);
+
+        if (!isEnoughForHomography(centers.keySet())) {
+            return Optional.empty();
+        }
+
+        List<Point> referencePoints = new ArrayList<>();
+        List<Point> points = new ArrayList<>();
+        for (Map.Entry<Integer, Point> entry : centers.entrySet()) {
+            int row = entry.getKey() / ColorChecker.colCount();
+            int col = entry.getKey() % ColorChecker.colCount();
+            referencePoints.add(ColorChecker.patchCenter(row, col));
+            points.add(entry.getValue());
+        }
+
+        MatOfPoint2f referenceMatOfPoint2f = new MatOfPoint2f();
+        referenceMatOfPoint2f.fromList(referencePoints);
+        MatOfPoint2f matOfPoint2f = new MatOfPoint2f();
+        matOfPoint2f.fromList(points);
+
+        double threshold = REPROJECTION_THRESHOLD * Math.max(image.rows(), image.cols());
+
+        return Optional.of(Calib3d.findHomography(
+                referenceMatOfPoint2f, matOfPoint2f, Calib3d.RANSAC, threshold))
+                .filter(x -> x.cols() > 0 && x.rows() > 0);
+    }
+
+    /* returns: patch index (row * colCount + col) -> patch center, every candidate is recognized
+     *   as the nearest reference color, the closest candidate is taken for every patch
+     */
+    Map<Integer, Point> recognizePatches(Mat image) {
+        Map<Integer, Point> centers = new HashMap<>();
+        Map<Integer, Double> distances = new HashMap<>();
+        EuclideanLab metric = new EuclideanLab();
+
+        for (RotatedRect patch : findPatchCandidates(image)) {
+            Color color = meanColor(image, patch);
+            int nearest = -1;
+            double nearestDistance = maxColorDistance;
+            for (int index = 0; index < referenceColors.size(); ++index) {
+                double distance = metric.calculate(color, referenceColors.get(index));
+                if (distance < nearestDistance) {
+                    nearest = index;
+                    nearestDistance = distance;
+                }
+            }
+
+            if (nearest != -1 && nearestDistance < distances.getOrDefault(nearest, Double.MAX_VALUE)) {
+                distances.put(nearest, nearestDistance);
+                centers.put(nearest, patch.center);
+            }
+        }
+
+        return centers;
+    }
+
+    // at least 4 patches, not all in the same row or column
+    private boolean isEnoughForHomography(Set<Integer> indexes) {
+        Set<Integer> rows = new HashSet<>();
+        Set<Integer> cols = new HashSet<>();
+        for (Integer index : indexes) {
+            rows.add(index / ColorChecker.colCount());
+            cols.add(index % ColorChecker.colCount());
+        }
+
+        return indexes.size() >= 4 && rows.size() >= 2 && cols.size() >= 2;
+    }
+
+    // saturated square-like blobs
+    static List<RotatedRect> findPatchCandidates(Mat image) {
+        Mat hsv = new Mat();
+        Imgproc.cvtColor(image, hsv, Imgproc.COLOR_BGR2HSV);
+        Mat saturated = saturationMask(hsv);
+        hsv.release();
+
+        Mat kernel = Imgproc.getStructuringElement(Imgproc.MORPH_RECT, new Size(3, 3));
+        Imgproc.morphologyEx(saturated, saturated, Imgproc.MORPH_OPEN, kernel);
+        kernel.release();
+
+        List<MatOfPoint> contours = new ArrayList<>();
+        Mat hierarchy = new Mat();
+        Imgproc.findContours(saturated, contours, hierarchy, Imgproc.RETR_LIST, Imgproc.CHAIN_APPROX_SIMPLE);
+        saturated.release();
+        hierarchy.release();
+
+        double maxArea = MAX_PATCH_AREA * image.rows() * image.cols();
+        List<RotatedRect> result = new ArrayList<>();
+
+        for (MatOfPoint contour : contours) {
+            double area = Imgproc.contourArea(contour);
+            if (area >= MIN_PATCH_AREA && area <= maxArea) {
+                RotatedRect rect = Imgproc.minAreaRect(new MatOfPoint2f(contour.toArray()));
+                double width = Math.min(rect.size.width, rect.size.height);
+                double height = Math.max(rect.size.width, rect.size.height);
+                if (width > 0 && height / width <= MAX_ASPECT_RATIO
+                        && area / rect.size.area() >= MIN_RECTANGULARITY) {
+                    result.add(rect);
+                }
+            }
+            contour.release();
+        }
+
+        return result;
+    }
+
+    static Mat saturationMask(Mat hsv) {
+        Mat saturated = new Mat();
+        Core.inRange(hsv, new Scalar(0, MIN_SATURATION, MIN_VALUE), new Scalar(180, 255, 255), saturated);
+
+        return saturated;
+    }
+
+    // the mean color of the central part of the patch
+    static Color meanColor(Mat image, RotatedRect patch) {
+        int halfSize = Math.max(1, (int) (Math.min(patch.size.width, patch.size.height) / 4));
+        int x = (int) patch.center.x;
+        int y = (int) patch.center.y;
+        Rect rect = new Rect(new Point(Math.max(0, x - halfSize), Math.max(0, y - halfSize)),
+                new Point(Math.min(image.cols(), x + halfSize + 1), Math.min(image.rows(), y + halfSize + 1)));
+        Mat center = new Mat(image, rect);
+        Scalar mean = Core.mean(center);
+        center.release();
+
+        return new Color(DoubleBuffer.wrap(new double[] {mean.val[0], mean.val[1], mean.val[2]}));
+    }
+
+    static double workScale(Mat image) {
+        return workScale(image, WORK_SIZE);
+    }
+
+    static double workScale(Mat image, int workSize) {
+        return Math.min(1.0, (double) workSize / Math.max(image.rows(), image.cols()));
+    }
+
+    static Mat downscale(Mat image, double factor) {
+        Mat small = new Mat();
+        Imgproc.resize(image, small, new Size(), factor, factor, Imgproc.INTER_AREA);
+
+        return small;
+    }
+
+    private Quad scaleQuad(Quad quad, double factor) {
+        Point[] points = quad.getPoints();
+        for (int i = 0; i < points.length; ++i) {
+            points[i] = new Point(points[i].x * factor, points[i].y * factor);
+        }
+
+        return new Quad(points[0], points[1], points[2], points[3]);
+    }
+}
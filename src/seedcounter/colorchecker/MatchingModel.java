@@ -1,5 +1,14 @@
 package seedcounter.colorchecker;
 
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import org.opencv.core.KeyPoint;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
 import org.opencv.features2d.Feature2D;
 
 public class MatchingModel {
@@ -7,13 +16,53 @@ public class MatchingModel {
     private final Feature2D extractor;
     private final int matcher;
     private final float threshold;
+    private final int keypointBudget;
+    private final int gridRows;
+    private final int gridCols;
+    private final double[] regionPrior;
 
     public MatchingModel(Feature2D detector, Feature2D extractor,
             int matcher, float threshold) {
+        this(detector, extractor, matcher, threshold, 0, 1, 1, null);
+    }
+
+    private MatchingModel(Feature2D detector, Feature2D extractor, int matcher, float threshold,
+            int keypointBudget, int gridRows, int gridCols, double[] regionPrior) {
         this.detector = detector;
         this.extractor = extractor;
         this.matcher = matcher;
         this.threshold = threshold;
+        this.keypointBudget = keypointBudget;
+        this.gridRows = gridRows;
+        this.gridCols = gridCols;
+        this.regionPrior = regionPrior;
+    }
+
+    /*
+     * keypointBudget - the maximal number of keypoints detected on an image (0 - unlimited)
+     * gridRows, gridCols - the image is split into the grid, the strongest keypoints
+     *     are taken from every cell in turn, so the kept keypoints cover the whole image
+     */
+    public MatchingModel withKeypointBudget(int keypointBudget, int gridRows, int gridCols) {
+        if (keypointBudget < 0 || gridRows < 1 || gridCols < 1) {
+            throw new IllegalArgumentException("Wrong keypoint budget or grid size");
+        }
+
+        return new MatchingModel(detector, extractor, matcher, threshold,
+                keypointBudget, gridRows, gridCols, regionPrior);
+    }
+
+    /*
+     * the part of an image where the color checker is expected, as the fractions of the image size,
+     * e.g. 0.0, 0.0, 0.4, 1.0 for the left 40% of the image
+     */
+    public MatchingModel withRegionPrior(double left, double top, double right, double bottom) {
+        if (left < 0.0 || top < 0.0 || right > 1.0 || bottom > 1.0 || left >= right || top >= bottom) {
+            throw new IllegalArgumentException("Wrong region prior");
+        }
+
+        return new MatchingModel(detector, extractor, matcher, threshold,
+                keypointBudget, gridRows, gridCols, new double[] {left, top, right, bottom});
     }
 
     public Feature2D getDetector() {
@@ -31,4 +80,84 @@ public class MatchingModel {
     public float getThreshold() {
         return threshold;
     }
+
+    public int getKeypointBudget() {
+        return keypointBudget;
+    }
+
+    public MatOfKeyPoint detect(Mat image) {
+        return detect(image, true);
+    }
+
+    // detects the keypoints inside the region prior (if any) and keeps at most keypointBudget of them
+    public MatOfKeyPoint detect(Mat image, boolean withRegionPrior) {
+        Rect region = withRegionPrior ? getRegion(image) : new Rect(0, 0, image.cols(), image.rows());
+        Mat regionImage = new Mat(image, region);
+        MatOfKeyPoint keypoints = new MatOfKeyPoint();
+        detector.detect(regionImage, keypoints);
+        regionImage.release();
+
+        KeyPoint[] selected = selectKeypoints(keypoints.toArray(), region.size());
+        for (KeyPoint keypoint : selected) {
+            keypoint.pt.x += region.x;
+            keypoint.pt.y += region.y;
+        }
+        keypoints.fromArray(selected);
+
+        return keypoints;
+    }
+
+    private Rect getRegion(Mat image) {
+        if (regionPrior == null) {
+            return new Rect(0, 0, image.cols(), image.rows());
+        }
+
+        int left = (int) (regionPrior[0] * image.cols());
+        int top = (int) (regionPrior[1] * image.rows());
+        int right = (int) Math.ceil(regionPrior[2] * image.cols());
+        int bottom = (int) Math.ceil(regionPrior[3] * image.rows());
+
+        return new Rect(left, top, Math.max(1, right - left), Math.max(1, bottom - top));
+    }
+
+    private KeyPoint[] selectKeypoints(KeyPoint[] keypoints, Size size) {
+        if (keypointBudget == 0 || keypoints.length <= keypointBudget) {
+            return keypoints;
+        }
+
+        Comparator<KeyPoint> byResponse = (k1, k2) -> Float.compare(k2.response, k1.response);
+
+        List<List<KeyPoint>> cells = new ArrayList<>();
+        for (int i = 0; i < gridRows * gridCols; ++i) {
+            cells.add(new ArrayList<>());
+        }
+        for (KeyPoint keypoint : keypoints) {
+            int row = Math.min(gridRows - 1, Math.max(0, (int) (keypoint.pt.y * gridRows / size.height)));
+            int col = Math.min(gridCols - 1, Math.max(0, (int) (keypoint.pt.x * gridCols / size.width)));
+            cells.get(row * gridCols + col).add(keypoint);
+        }
+        for (List<KeyPoint> cell : cells) {
+            cell.sort(byResponse);
+        }
+
+        // takes the rank-th strongest keypoint of every cell until the budget is spent
+        List<KeyPoint> result = new ArrayList<>(keypointBudget);
+        for (int rank = 0; result.size() < keypointBudget; ++rank) {
+            List<KeyPoint> candidates = new ArrayList<>();
+            for (List<KeyPoint> cell : cells) {
+                if (rank < cell.size()) {
+                    candidates.add(cell.get(rank));
+                }
+            }
+
+            int remaining = keypointBudget - result.size();
+            if (candidates.size() > remaining) {
+                candidates.sort(byResponse);
+                candidates = candidates.subList(0, remaining);
+            }
+            result.addAll(candidates);
+        }
+
+        return result.toArray(new KeyPoint[0]);
+    }
 }
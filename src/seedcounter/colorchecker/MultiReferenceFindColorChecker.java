@@ -0,0 +1,183 @@
+package seedcounter.colorchecker;
+
+import java.util.*;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.*;
+import org.opencv.features2d.DescriptorMatcher;
+import org.opencv.features2d.Feature2D;
+import org.opencv.imgcodecs.Imgcodecs;
+import seedcounter.common.Quad;
+
+/*
+ * Color checker search with several reference images (different models or printings).
+ * The keypoints and descriptors of the image are calculated once and every reference
+ * is matched against them separately (reference -> image, as in FindColorChecker), so
+ * the ratio test isn't broken by the near-duplicate keypoints of similar references.
+ */
+public class MultiReferenceFindColorChecker {
+    private static final int MIN_MATCHES = 4;
+
+    private final List<String> referenceFiles;
+    private final List<Size> referenceSizes;
+    private final List<KeyPoint[]> referenceKeypoints;
+    private final List<Mat> referenceDescriptors;
+    private final MatchingModel matchingModel;
+    private final Feature2D detector;
+    private final Feature2D extractor;
+    private final DescriptorMatcher descriptorMatcher;
+
+    public MultiReferenceFindColorChecker(List<String> referenceFiles, MatchingModel matchingModel) {
+        this.referenceFiles = new ArrayList<>(referenceFiles);
+        this.matchingModel = matchingModel;
+        detector = matchingModel.getDetector();
+        extractor = matchingModel.getExtractor();
+
+        referenceSizes = new ArrayList<>();
+        referenceKeypoints = new ArrayList<>();
+        referenceDescriptors = new ArrayList<>();
+
+        for (String referenceFile : this.referenceFiles) {
+            Mat referenceImage = Imgcodecs.imread(referenceFile,
+                    Imgcodecs.CV_LOAD_IMAGE_ANYCOLOR | Imgcodecs.CV_LOAD_IMAGE_ANYDEPTH);
+            MatOfKeyPoint keypoints = new MatOfKeyPoint();
+            detector.detect(referenceImage, keypoints);
+            Mat descriptors = new Mat();
+            extractor.compute(referenceImage, keypoints, descriptors);
+
+            referenceSizes.add(referenceImage.size());
+            referenceKeypoints.add(keypoints.toArray());
+            referenceDescriptors.add(descriptors);
+            keypoints.release();
+            referenceImage.release();
+        }
+
+        descriptorMatcher = DescriptorMatcher.create(matchingModel.getMatcher());
+    }
+
+    // returns the reference having the most homography inliers, if any
+    public Optional<Match> findColorChecker(Mat image) {
+        if (image.rows() < 100 || image.cols() < 50) {
+            return Optional.empty();
+        }
+
+        MatOfKeyPoint keypoints = matchingModel.detect(image);
+        if ((int) keypoints.size().width * (int) keypoints.size().height < 2) {
+            keypoints.release();
+            return Optional.empty();
+        }
+
+        Mat descriptors = new Mat();
+        extractor.compute(image, keypoints, descriptors);
+        KeyPoint[] keypointArray = keypoints.toArray();
+        keypoints.release();
+
+        Map<Integer, List<DMatch>> goodMatches = getGoodMatches(descriptors);
+        descriptors.release();
+
+        Match bestMatch = null;
+        for (Map.Entry<Integer, List<DMatch>> entry : goodMatches.entrySet()) {
+            Optional<Match> match = getMatch(entry.getKey(), entry.getValue(), keypointArray);
+            if (match.isPresent() && (bestMatch == null || match.get().getInliers() > bestMatch.getInliers())) {
+                bestMatch = match.get();
+            }
+        }
+
+        return Optional.ofNullable(bestMatch);
+    }
+
+    /*
+     * good matches grouped by the reference index, the ratio test is done within every reference:
+     *   queryIdx - the reference keypoint, trainIdx - the image keypoint
+     */
+    private Map<Integer, List<DMatch>> getGoodMatches(Mat descriptors) {
+        Map<Integer, List<DMatch>> goodMatches = new HashMap<>();
+
+        for (int referenceIndex = 0; referenceIndex < referenceDescriptors.size(); ++referenceIndex) {
+            List<MatOfDMatch> matches = new ArrayList<>();
+            descriptorMatcher.knnMatch(referenceDescriptors.get(referenceIndex), descriptors, matches, 2);
+
+            List<DMatch> referenceMatches = new ArrayList<>();
+            for (MatOfDMatch matOfDMatch : matches) {
+                DMatch[] dmatcharray = matOfDMatch.toArray();
+                matOfDMatch.release();
+                if (dmatcharray.length < 2) {
+                    continue;
+                }
+                DMatch m1 = dmatcharray[0];
+                DMatch m2 = dmatcharray[1];
+
+                if (m1.distance <= m2.distance * matchingModel.getThreshold()) {
+                    referenceMatches.add(m1);
+                }
+            }
+            goodMatches.put(referenceIndex, referenceMatches);
+        }
+
+        return goodMatches;
+    }
+
+    private Optional<Match> getMatch(int referenceIndex, List<DMatch> goodMatches, KeyPoint[] keypoints) {
+        if (goodMatches.size() < MIN_MATCHES) {
+            return Optional.empty();
+        }
+
+        KeyPoint[] references = referenceKeypoints.get(referenceIndex);
+        Point[] referencePoints = new Point[goodMatches.size()];
+        Point[] points = new Point[goodMatches.size()];
+
+        for (int i = 0; i < goodMatches.size(); ++i) {
+            DMatch goodMatch = goodMatches.get(i);
+            referencePoints[i] = references[goodMatch.queryIdx].pt;
+            points[i] = keypoints[goodMatch.trainIdx].pt;
+        }
+
+        Mat inliers = new Mat();
+        Mat homography = Calib3d.findHomography(new MatOfPoint2f(referencePoints),
+                new MatOfPoint2f(points), Calib3d.RANSAC, 3, inliers, 2000, 0.995);
+
+        if (homography.cols() == 0 || homography.rows() == 0) {
+            inliers.release();
+            return Optional.empty();
+        }
+
+        Quad quad = FindColorChecker.referenceQuad(homography, referenceSizes.get(referenceIndex), 0.0);
+        Match match = new Match(referenceIndex, referenceFiles.get(referenceIndex), quad,
+                Core.countNonZero(inliers));
+        homography.release();
+        inliers.release();
+
+        return Optional.of(match);
+    }
+
+    public static class Match {
+        private final int referenceIndex;
+        private final String referenceFile;
+        private final Quad quad;
+        private final int inliers;
+
+        public Match(int referenceIndex, String referenceFile, Quad quad, int inliers) {
+            this.referenceIndex = referenceIndex;
+            this.referenceFile = referenceFile;
+            this.quad = quad;
+            this.inliers = inliers;
+        }
+
+        public int getReferenceIndex() {
+            return referenceIndex;
+        }
+
+        public String getReferenceFile() {
+            return referenceFile;
+        }
+
+        public Quad getQuad() {
+            return quad;
+        }
+
+        // the number of matches consistent with the homography
+        public int getInliers() {
+            return inliers;
+        }
+    }
+}
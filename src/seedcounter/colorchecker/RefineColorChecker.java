@@ -0,0 +1,205 @@
+package seedcounter.colorchecker;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.*;
+import org.opencv.imgproc.Imgproc;
+import seedcounter.common.Quad;
+
+/*
+ * Refines the found color checker quad using the known layout of the color patches
+ * instead of running the second keypoint detection. The color checker is extracted
+ * at a fixed size, every patch center is snapped to the nearby homogeneous area
+ * and the homography is fitted to the snapped centers.
+ */
+public class RefineColorChecker {
+    private static final Size CANONICAL_SIZE = new Size(400, 675);
+    // the half size of the box tested for homogeneity, fraction of the distance between patches
+    private static final double BOX_FRACTION = 0.25;
+    // the maximal patch center shift, fraction of the distance between patches
+    private static final double SEARCH_FRACTION = 0.25;
+    // the maximal box variance (summed over channels) for the patch to be used
+    private static final double MAX_VARIANCE = 400.0;
+    private static final int ITERATIONS = 3;
+    // stop iterating when no corner moved more than this (pixels)
+    private static final double MIN_SHIFT = 1.0;
+
+    // returns the source quad if the patches can't be found
+    public Quad refine(Mat image, Quad quad) {
+        for (int iteration = 0; iteration < ITERATIONS; ++iteration) {
+            Quad refined = refineOnce(image, quad);
+            double shift = maxShift(quad, refined);
+            quad = refined;
+            if (shift < MIN_SHIFT) {
+                break;
+            }
+        }
+
+        return quad;
+    }
+
+    private double maxShift(Quad quad1, Quad quad2) {
+        Point[] points1 = quad1.getPoints();
+        Point[] points2 = quad2.getPoints();
+        double result = 0.0;
+        for (int i = 0; i < points1.length; ++i) {
+            result = Math.max(result, Math.hypot(points1[i].x - points2[i].x, points1[i].y - points2[i].y));
+        }
+
+        return result;
+    }
+
+    private Quad refineOnce(Mat image, Quad quad) {
+        Mat extracted = quad.getTransformedField(image, CANONICAL_SIZE);
+        Mat toCanonical = quad.getPerspectiveTransform(CANONICAL_SIZE);
+        Mat fromCanonical = toCanonical.inv();
+        toCanonical.release();
+
+        List<Point> referencePoints = new ArrayList<>();
+        List<Point> points = new ArrayList<>();
+        snapCenters(extracted, referencePoints, points);
+        extracted.release();
+
+        if (!isEnoughForHomography(referencePoints)) {
+            fromCanonical.release();
+            return quad;
+        }
+
+        MatOfPoint2f canonicalPoints = new MatOfPoint2f();
+        canonicalPoints.fromList(points);
+        MatOfPoint2f imagePoints = new MatOfPoint2f();
+        Core.perspectiveTransform(canonicalPoints, imagePoints, fromCanonical);
+        fromCanonical.release();
+
+        MatOfPoint2f referenceMatOfPoint2f = new MatOfPoint2f();
+        referenceMatOfPoint2f.fromList(referencePoints);
+        Mat homography = Calib3d.findHomography(referenceMatOfPoint2f, imagePoints, Calib3d.LMEDS, 0);
+        canonicalPoints.release();
+        imagePoints.release();
+        referenceMatOfPoint2f.release();
+
+        if (homography.cols() == 0 || homography.rows() == 0) {
+            homography.release();
+            return quad;
+        }
+
+        Quad refined = FindColorChecker.referenceQuad(homography, new Size(1.0, 1.0), 0.0);
+        homography.release();
+
+        return refined;
+    }
+
+    /* fills:
+     *   referencePoints - patch centers in the color checker of the unit size,
+     *   points - corresponding snapped centers in the extracted color checker
+     */
+    private void snapCenters(Mat extracted, List<Point> referencePoints, List<Point> points) {
+        int channels = extracted.channels();
+        int width = extracted.cols() + 1;
+        Mat sum = new Mat();
+        Mat sqsum = new Mat();
+        Imgproc.integral2(extracted, sum, sqsum, CvType.CV_64F, CvType.CV_64F);
+        double[] sums = new double[(int) sum.total() * channels];
+        double[] sqsums = new double[(int) sqsum.total() * channels];
+        sum.get(0, 0, sums);
+        sqsum.get(0, 0, sqsums);
+        sum.release();
+        sqsum.release();
+
+        double xSpacing = spacing(ColorChecker.patchCenter(0, 0).x, ColorChecker.patchCenter(0, 1).x,
+                extracted.cols());
+        double ySpacing = spacing(ColorChecker.patchCenter(0, 0).y, ColorChecker.patchCenter(1, 0).y,
+                extracted.rows());
+        int xBox = Math.max(1, (int) (BOX_FRACTION * xSpacing));
+        int yBox = Math.max(1, (int) (BOX_FRACTION * ySpacing));
+        int xSearch = (int) (SEARCH_FRACTION * xSpacing);
+        int ySearch = (int) (SEARCH_FRACTION * ySpacing);
+
+        for (int row = 0; row < ColorChecker.rowCount(); ++row) {
+            for (int col = 0; col < ColorChecker.colCount(); ++col) {
+                Point reference = ColorChecker.patchCenter(row, col);
+                int x0 = (int) Math.round(reference.x * extracted.cols());
+                int y0 = (int) Math.round(reference.y * extracted.rows());
+
+                // box variances in the search window, the centroid of the most homogeneous positions is taken
+                int windowWidth = 2 * xSearch + 1;
+                double[] variances = new double[windowWidth * (2 * ySearch + 1)];
+                double minVariance = Double.MAX_VALUE;
+                for (int dy = -ySearch; dy <= ySearch; ++dy) {
+                    for (int dx = -xSearch; dx <= xSearch; ++dx) {
+                        double variance = boxVariance(sums, sqsums, width, channels,
+                                x0 + dx - xBox, y0 + dy - yBox, x0 + dx + xBox + 1, y0 + dy + yBox + 1,
+                                extracted.cols(), extracted.rows());
+                        variances[(dy + ySearch) * windowWidth + dx + xSearch] = variance;
+                        minVariance = Math.min(minVariance, variance);
+                    }
+                }
+
+                if (minVariance > MAX_VARIANCE) {
+                    continue;
+                }
+
+                double threshold = 1.5 * minVariance + 1.0;
+                double x = 0.0;
+                double y = 0.0;
+                int count = 0;
+                for (int dy = -ySearch; dy <= ySearch; ++dy) {
+                    for (int dx = -xSearch; dx <= xSearch; ++dx) {
+                        if (variances[(dy + ySearch) * windowWidth + dx + xSearch] <= threshold) {
+                            x += x0 + dx;
+                            y += y0 + dy;
+                            ++count;
+                        }
+                    }
+                }
+
+                referencePoints.add(reference);
+                points.add(new Point(x / count, y / count));
+            }
+        }
+    }
+
+    private double spacing(double first, double second, int size) {
+        return Math.abs(second - first) * size;
+    }
+
+    // the sum of channel variances in the box [x1, x2) x [y1, y2), infinite if the box is out of the image
+    private double boxVariance(double[] sums, double[] sqsums, int width, int channels,
+                               int x1, int y1, int x2, int y2, int cols, int rows) {
+        if (x1 < 0 || y1 < 0 || x2 > cols || y2 > rows) {
+            return Double.MAX_VALUE;
+        }
+
+        double n = (double) (x2 - x1) * (y2 - y1);
+        double result = 0.0;
+        for (int c = 0; c < channels; ++c) {
+            double s = boxSum(sums, width, channels, c, x1, y1, x2, y2);
+            double sq = boxSum(sqsums, width, channels, c, x1, y1, x2, y2);
+            result += sq / n - Math.pow(s / n, 2.0);
+        }
+
+        return result;
+    }
+
+    private double boxSum(double[] integral, int width, int channels, int channel,
+                          int x1, int y1, int x2, int y2) {
+        return integral[(y2 * width + x2) * channels + channel] - integral[(y1 * width + x2) * channels + channel]
+                - integral[(y2 * width + x1) * channels + channel] + integral[(y1 * width + x1) * channels + channel];
+    }
+
+    // at least 4 patches, not all in the same row or column
+    private boolean isEnoughForHomography(List<Point> referencePoints) {
+        Set<Double> xs = new HashSet<>();
+        Set<Double> ys = new HashSet<>();
+        for (Point p : referencePoints) {
+            xs.add(p.x);
+            ys.add(p.y);
+        }
+
+        return referencePoints.size() >= 4 && xs.size() >= 2 && ys.size() >= 2;
+    }
+}
@@ -0,0 +1,69 @@
+package seedcounter.colorchecker;
+
+import org.opencv.core.Mat;
+import seedcounter.common.Quad;
+
+/*
+ * Color checker search for a series of images taken by a fixed camera rig.
+ * The quad found on the previous image is verified on the current one first,
+ * the full keypoint detection is run only if the verification fails.
+ */
+public class TrackingColorChecker {
+    private static final double DEFAULT_THRESHOLD = 25.0;
+
+    private final FindColorChecker findColorChecker;
+    private final double threshold;
+
+    private Quad previousQuad = null;
+    private int hits = 0;
+    private int misses = 0;
+
+    public TrackingColorChecker(FindColorChecker findColorChecker) {
+        this(findColorChecker, DEFAULT_THRESHOLD);
+    }
+
+    /*
+     * threshold - the maximal Lab deviation from the reference colors
+     *     for the previous quad to be accepted on the current image
+     */
+    public TrackingColorChecker(FindColorChecker findColorChecker, double threshold) {
+        this.findColorChecker = findColorChecker;
+        this.threshold = threshold;
+    }
+
+    public Quad findColorChecker(Mat image) {
+        if (previousQuad != null && verify(image, previousQuad)) {
+            ++hits;
+            return previousQuad;
+        }
+
+        ++misses;
+        previousQuad = findColorChecker.findBestFitColorChecker(image);
+
+        return previousQuad;
+    }
+
+    public boolean verify(Mat image, Quad quad) {
+        return FindColorChecker.canonicalLabDeviation(image, quad) < threshold;
+    }
+
+    public void reset() {
+        previousQuad = null;
+        hits = 0;
+        misses = 0;
+    }
+
+    public Quad getPreviousQuad() {
+        return previousQuad;
+    }
+
+    // the number of images where the previous quad was accepted
+    public int getHits() {
+        return hits;
+    }
+
+    // the number of images where the full detection was run
+    public int getMisses() {
+        return misses;
+    }
+}
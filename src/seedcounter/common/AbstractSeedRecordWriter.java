@@ -0,0 +1,73 @@
+package seedcounter.common;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * The images and seeds tables are small and written as TSV:
+ *   PREFIX_images.tsv, PREFIX_seeds.tsv
+ * the pixels table is written by the subclasses.
+ */
+public abstract class AbstractSeedRecordWriter implements SeedRecordWriter {
+    private final List<String> imageColumns;
+    private final Writer images;
+    private final Writer seeds;
+    private int imageCount = 0;
+
+    protected AbstractSeedRecordWriter(String prefix, List<String> imageColumns) throws IOException {
+        this.imageColumns = new ArrayList<>(imageColumns);
+        this.images = openTsv(prefix + "_images.tsv");
+        this.seeds = openTsv(prefix + "_seeds.tsv");
+
+        StringBuilder header = new StringBuilder("image_id");
+        for (String column : imageColumns) {
+            header.append('\t').append(column);
+        }
+        images.write(header.append('\n').toString());
+        seeds.write("image_id\tseed_number\tarea\tpixels\n");
+    }
+
+    protected static Writer openTsv(String fileName) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fileName), StandardCharsets.UTF_8),
+                1 << 16);
+    }
+
+    @Override
+    public int addImage(Map<String, String> fields) {
+        for (String key : fields.keySet()) {
+            if (!imageColumns.contains(key)) {
+                throw new IllegalArgumentException("Unknown image column " + key);
+            }
+        }
+
+        StringBuilder row = new StringBuilder().append(imageCount);
+        for (String column : imageColumns) {
+            row.append('\t').append(fields.getOrDefault(column, ""));
+        }
+        write(images, row.append('\n').toString());
+
+        return imageCount++;
+    }
+
+    @Override
+    public void addSeed(int imageId, int seedNumber, double area, int pixelCount) {
+        write(seeds, imageId + "\t" + seedNumber + "\t" + area + "\t" + pixelCount + "\n");
+    }
+
+    protected static void write(Writer writer, String text) {
+        try {
+            writer.write(text);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        images.close();
+        seeds.close();
+    }
+}
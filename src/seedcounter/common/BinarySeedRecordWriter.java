@@ -0,0 +1,88 @@
+package seedcounter.common;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/*
+ * The pixels table as PREFIX_pixels.bin, columnar and little-endian:
+ *   the magic "SEEDPIX1", then the blocks of at most BLOCK_SIZE rows:
+ *   int32 row count n, int32[n] image_id, int32[n] seed_number, int32[n] x, int32[n] y,
+ *   uint8[n] blue, uint8[n] green, uint8[n] red
+ * (19 bytes per pixel). python/seed_records.py reads it.
+ * The colors are 8-bit, SeedUtils scales 16-bit images to 8 bits before writing.
+ */
+public class BinarySeedRecordWriter extends AbstractSeedRecordWriter {
+    private static final byte[] MAGIC = "SEEDPIX1".getBytes(StandardCharsets.US_ASCII);
+    private static final int BLOCK_SIZE = 1 << 16;
+
+    private final OutputStream pixels;
+    private final int[] imageIds = new int[BLOCK_SIZE];
+    private final int[] seedNumbers = new int[BLOCK_SIZE];
+    private final int[] xs = new int[BLOCK_SIZE];
+    private final int[] ys = new int[BLOCK_SIZE];
+    private final byte[] blues = new byte[BLOCK_SIZE];
+    private final byte[] greens = new byte[BLOCK_SIZE];
+    private final byte[] reds = new byte[BLOCK_SIZE];
+    private final ByteBuffer buffer = ByteBuffer.allocate(4 + 19 * BLOCK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private int size = 0;
+
+    public BinarySeedRecordWriter(String prefix, List<String> imageColumns) throws IOException {
+        super(prefix, imageColumns);
+        pixels = new BufferedOutputStream(new FileOutputStream(prefix + "_pixels.bin"), 1 << 16);
+        pixels.write(MAGIC);
+    }
+
+    @Override
+    public void addPixel(int imageId, int seedNumber, int x, int y, int blue, int green, int red) {
+        if (!is8Bit(blue) || !is8Bit(green) || !is8Bit(red)) {
+            throw new IllegalArgumentException("Not an 8-bit color: " + blue + ", " + green + ", " + red);
+        }
+        imageIds[size] = imageId;
+        seedNumbers[size] = seedNumber;
+        xs[size] = x;
+        ys[size] = y;
+        blues[size] = (byte) blue;
+        greens[size] = (byte) green;
+        reds[size] = (byte) red;
+        if (++size == BLOCK_SIZE) {
+            flushBlock();
+        }
+    }
+
+    private static boolean is8Bit(int value) {
+        return value >= 0 && value <= 255;
+    }
+
+    private void flushBlock() {
+        buffer.clear();
+        buffer.putInt(size);
+        for (int[] column : new int[][] {imageIds, seedNumbers, xs, ys}) {
+            buffer.asIntBuffer().put(column, 0, size);
+            buffer.position(buffer.position() + 4 * size);
+        }
+        buffer.put(blues, 0, size).put(greens, 0, size).put(reds, 0, size);
+
+        try {
+            pixels.write(buffer.array(), 0, buffer.position());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        size = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // the last partial block goes out before any of the files are closed
+        try {
+            if (size > 0) {
+                flushBlock();
+            }
+            pixels.close();
+        } finally {
+            super.close();
+        }
+    }
+}
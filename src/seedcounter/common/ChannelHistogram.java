@@ -0,0 +1,92 @@
+package seedcounter.common;
+
+import java.util.Arrays;
+
+// streaming statistics of 8-bit channel values (0 - 255), 16-bit images are scaled to 8 bits before
+public class ChannelHistogram {
+    private final long[] counts = new long[256];
+    private long size = 0;
+    private long sum = 0;
+
+    public void add(int value) {
+        if (value < 0 || value >= counts.length) {
+            throw new IllegalArgumentException("Not an 8-bit channel value: " + value);
+        }
+        ++counts[value];
+        ++size;
+        sum += value;
+    }
+
+    public void clear() {
+        Arrays.fill(counts, 0);
+        size = 0;
+        sum = 0;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public double mean() {
+        return size == 0 ? Double.NaN : (double) sum / size;
+    }
+
+    public double median() {
+        return percentile(50.0);
+    }
+
+    /*
+     * p in [0, 100], linear interpolation between the closest order statistics
+     * (the same as numpy.percentile and pandas quantile by default)
+     */
+    public double percentile(double p) {
+        if (size == 0) {
+            return Double.NaN;
+        }
+
+        double position = (size - 1) * p / 100.0;
+        long lower = (long) Math.floor(position);
+        double lowerValue = orderStatistic(lower);
+        if (position == lower) {
+            return lowerValue;
+        }
+
+        return lowerValue + (position - lower) * (orderStatistic(lower + 1) - lowerValue);
+    }
+
+    /*
+     * p in (0, 100], the same estimation as the commons-math Percentile (LEGACY):
+     * position p * (n + 1) / 100 between the 1-based order statistics
+     */
+    public double legacyPercentile(double p) {
+        if (size == 0) {
+            return Double.NaN;
+        }
+
+        double position = p * (size + 1) / 100.0;
+        if (position < 1.0) {
+            return orderStatistic(0);
+        }
+        if (position >= size) {
+            return orderStatistic(size - 1);
+        }
+
+        long lower = (long) Math.floor(position);
+        double lowerValue = orderStatistic(lower - 1);
+
+        return lowerValue + (position - lower) * (orderStatistic(lower) - lowerValue);
+    }
+
+    // the value at the 0-based index k of the sorted values
+    private int orderStatistic(long k) {
+        long cumulative = 0;
+        for (int value = 0; value < counts.length; ++value) {
+            cumulative += counts[value];
+            if (cumulative > k) {
+                return value;
+            }
+        }
+
+        return counts.length - 1;
+    }
+}
@@ -2,18 +2,38 @@ package seedcounter.common;
 
 import org.opencv.core.*;
 
-import java.util.AbstractMap.SimpleEntry;
-import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
+import java.util.Random;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.stream.IntStream;
 
 public class Clusterizer {
+    // the rows of the samples reduced by a single task
+    private static final int BLOCK_ROWS = 1 << 16;
+    // the cluster statistics layout
+    private static final int COUNT = 0;
+    private static final int SECOND_MOMENT = 1;
+    private static final int CHANNEL_SUMS = 2;
+    private static final long SAMPLE_SEED = 42L;
+
     private final int clusters;
+    private final int sampleSize;
 
     public Clusterizer(int clusters) {
+        this(clusters, 0);
+    }
+
+    /*
+     * sampleSize - the number of samples the centroids are fitted on (0 - all of them),
+     *     a stratified subsample: one random sample from each of sampleSize equal row ranges,
+     *     all the samples are assigned to the nearest centroid after that
+     */
+    public Clusterizer(int clusters, int sampleSize) {
+        if (sampleSize < 0) {
+            throw new IllegalArgumentException("Wrong sample size");
+        }
         this.clusters = clusters;
+        this.sampleSize = sampleSize;
     }
 
     /* takes:
@@ -21,44 +41,82 @@ public class Clusterizer {
      * 	 cluster labels (rows*cols, 1, 1)
      */
     public double getBackgroundVariance(Mat samples, Mat labels) {
-        List<Map<String,Double>> clusterStatistics = new ArrayList<>();
-        for (int i = 0; i < clusters; ++i) {
-            clusterStatistics.add(Stream.of(
-                    new SimpleEntry<>("second_moment", 0.0),
-                    new SimpleEntry<>("count", 0.0)
-            ).collect(Collectors.toMap(SimpleEntry::getKey, SimpleEntry::getValue)));
-            for (int col = 0; col < samples.cols(); ++col) {
-                clusterStatistics.get(i).put("sum_channel_" + col, 0.0);
-            }
-        }
+        int stride = samples.cols() + 2;
+        int blocks = (labels.rows() + BLOCK_ROWS - 1) / BLOCK_ROWS;
 
-        for (int row = 0; row < labels.rows(); ++row) {
-            int label = (int)labels.get(row, 0)[0];
-            Map<String,Double> map = clusterStatistics.get(label);
-
-            for (int col = 0; col < samples.cols(); ++col) {
-                map.put("second_moment", map.get("second_moment") + Math.pow(samples.get(row, col)[0], 2));
-                map.put("sum_channel_" + col, map.get("sum_channel_" + col) + samples.get(row, col)[0]);
+        // the blocks are summed in their order, so the result doesn't depend on the threads
+        List<double[]> blockStatistics = IntStream.range(0, blocks).parallel()
+                .mapToObj(block -> getStatistics(samples, labels,
+                        block * BLOCK_ROWS, Math.min(labels.rows(), (block + 1) * BLOCK_ROWS)))
+                .collect(Collectors.toList());
+        double[] statistics = new double[clusters * stride];
+        for (double[] block : blockStatistics) {
+            for (int i = 0; i < statistics.length; ++i) {
+                statistics[i] += block[i];
             }
-            map.put("count", map.get("count") + 1.0);
         }
 
-        Map<String,Double> maxCluster = clusterStatistics.get(0);
-        for (Map<String,Double> c : clusterStatistics) {
-            if (c.get("count") > maxCluster.get("count")) {
-                maxCluster = c;
+        int maxCluster = 0;
+        for (int cluster = 0; cluster < clusters; ++cluster) {
+            if (statistics[cluster * stride + COUNT] > statistics[maxCluster * stride + COUNT]) {
+                maxCluster = cluster;
             }
         }
 
-        double result = maxCluster.get("second_moment") / maxCluster.get("count");
+        int offset = maxCluster * stride;
+        double count = statistics[offset + COUNT];
+        double result = statistics[offset + SECOND_MOMENT] / count;
 
         for (int col = 0; col < samples.cols(); ++col) {
-            result -= Math.pow(maxCluster.get("sum_channel_" + col) / maxCluster.get("count"), 2);
+            result -= Math.pow(statistics[offset + CHANNEL_SUMS + col] / count, 2);
         }
 
         return result;
     }
 
+    /* returns: for every cluster {count, second moment, sum of every channel}
+     *   of the sample rows [from, to)
+     */
+    private double[] getStatistics(Mat samples, Mat labels, int from, int to) {
+        int channels = samples.cols();
+        int stride = channels + 2;
+        double[] values = getDoubles(samples.rowRange(from, to));
+        int[] rowLabels = getInts(labels.rowRange(from, to));
+
+        double[] statistics = new double[clusters * stride];
+        for (int row = 0; row < rowLabels.length; ++row) {
+            int offset = rowLabels[row] * stride;
+            for (int col = 0; col < channels; ++col) {
+                double value = values[row * channels + col];
+                statistics[offset + SECOND_MOMENT] += value * value;
+                statistics[offset + CHANNEL_SUMS + col] += value;
+            }
+            statistics[offset + COUNT] += 1.0;
+        }
+
+        return statistics;
+    }
+
+    private static double[] getDoubles(Mat mat) {
+        Mat converted = new Mat();
+        mat.convertTo(converted, CvType.CV_64F);
+        double[] result = new double[(int) converted.total() * converted.channels()];
+        converted.get(0, 0, result);
+        converted.release();
+
+        return result;
+    }
+
+    private static int[] getInts(Mat mat) {
+        Mat converted = new Mat();
+        mat.convertTo(converted, CvType.CV_32S);
+        int[] result = new int[(int) converted.total() * converted.channels()];
+        converted.get(0, 0, result);
+        converted.release();
+
+        return result;
+    }
+
     /* takes:
      *   source image,
      * 	 array {
@@ -67,22 +125,29 @@ public class Clusterizer {
      * 	 }
      */
     public Mat getBackgroundSegmentation(Mat image, Mat[] clusters) {
-        Mat samples = getClusteringSamples(image);
-        Mat labels = clusters[0];
+        Mat labels = clusters[0].reshape(1, image.rows());
         Mat centroids = clusters[1];
 
-        for (int row = 0; row < labels.rows(); ++row) {
-            int label = (int)labels.get(row, 0)[0];
-            Mat samplesRow = samples.row(row);
-            centroids.row(label).copyTo(samplesRow);
+        // every pixel is painted with its centroid, converted to the image type as by convertTo
+        Mat result = new Mat(image.rows(), image.cols(), image.type());
+        Mat mask = new Mat();
+        float[] centroid = new float[centroids.cols()];
+        for (int cluster = 0; cluster < centroids.rows(); ++cluster) {
+            centroids.get(cluster, 0, centroid);
+            double[] color = new double[centroid.length];
+            for (int channel = 0; channel < centroid.length; ++channel) {
+                color[channel] = centroid[channel];
+            }
+
+            Core.compare(labels, new Scalar(cluster), mask, Core.CMP_EQ);
+            result.setTo(new Scalar(color), mask);
         }
+        mask.release();
         labels.release();
+        clusters[0].release();
         centroids.release();
 
-        samples = samples.reshape(image.channels(), image.rows());
-        samples.convertTo(samples, image.type());
-
-        return samples;
+        return result;
     }
 
     // returns: source image points reshaped into (rows*cols, channels, 1)
@@ -104,6 +169,19 @@ public class Clusterizer {
     }
 
     public Mat[] clusterize(Mat samples, int attempts, int maxIterations, double epsilon) {
+        if (sampleSize == 0 || samples.rows() <= sampleSize) {
+            return fit(samples, attempts, maxIterations, epsilon);
+        }
+
+        Mat subsample = getSubsample(samples);
+        Mat[] fitted = fit(subsample, attempts, maxIterations, epsilon);
+        subsample.release();
+        fitted[0].release();
+
+        return new Mat[] {assign(samples, fitted[1]), fitted[1]};
+    }
+
+    private Mat[] fit(Mat samples, int attempts, int maxIterations, double epsilon) {
         Mat labels = new Mat(samples.rows(), 1, CvType.CV_8U);
         Mat centroids = new Mat(clusters, 1, CvType.CV_32F);
         TermCriteria criteria = new TermCriteria(TermCriteria.EPS | TermCriteria.MAX_ITER,
@@ -113,4 +191,66 @@ public class Clusterizer {
 
         return new Mat[] {labels, centroids};
     }
+
+    // samples - CV_32F
+    private Mat getSubsample(Mat samples) {
+        int channels = samples.cols();
+        float[] row = new float[channels];
+        float[] values = new float[sampleSize * channels];
+        Random random = new Random(SAMPLE_SEED);
+
+        for (int i = 0; i < sampleSize; ++i) {
+            int from = (int) ((long) i * samples.rows() / sampleSize);
+            int to = (int) ((long) (i + 1) * samples.rows() / sampleSize);
+            samples.get(from + random.nextInt(to - from), 0, row);
+            System.arraycopy(row, 0, values, i * channels, channels);
+        }
+
+        Mat result = new Mat(sampleSize, channels, CvType.CV_32F);
+        result.put(0, 0, values);
+
+        return result;
+    }
+
+    // returns: the labels of the nearest centroids (rows*cols, 1, 1)
+    private Mat assign(Mat samples, Mat centroids) {
+        double[] centroidValues = getDoubles(centroids);
+        int blocks = (samples.rows() + BLOCK_ROWS - 1) / BLOCK_ROWS;
+
+        List<int[]> blockLabels = IntStream.range(0, blocks).parallel()
+                .mapToObj(block -> getNearest(samples, centroidValues,
+                        block * BLOCK_ROWS, Math.min(samples.rows(), (block + 1) * BLOCK_ROWS)))
+                .collect(Collectors.toList());
+
+        Mat labels = new Mat(samples.rows(), 1, CvType.CV_32S);
+        for (int block = 0; block < blocks; ++block) {
+            labels.put(block * BLOCK_ROWS, 0, blockLabels.get(block));
+        }
+
+        return labels;
+    }
+
+    // the nearest centroids of the sample rows [from, to)
+    private int[] getNearest(Mat samples, double[] centroids, int from, int to) {
+        int channels = samples.cols();
+        double[] values = getDoubles(samples.rowRange(from, to));
+
+        int[] result = new int[to - from];
+        for (int row = 0; row < result.length; ++row) {
+            double minDistance = Double.MAX_VALUE;
+            for (int cluster = 0; cluster < clusters; ++cluster) {
+                double distance = 0.0;
+                for (int col = 0; col < channels; ++col) {
+                    double difference = values[row * channels + col] - centroids[cluster * channels + col];
+                    distance += difference * difference;
+                }
+                if (distance < minDistance) {
+                    minDistance = distance;
+                    result[row] = cluster;
+                }
+            }
+        }
+
+        return result;
+    }
 }
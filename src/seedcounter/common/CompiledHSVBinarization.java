@@ -0,0 +1,101 @@
+package seedcounter.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import javafx.util.Pair;
+
+/*
+ * HSVBinarization compiled into a set of all 8-bit BGR colors hitting the targets
+ * (2^24 bits, 2 MB), so the binarization is a single bit lookup per pixel
+ * without the color conversion. The masks are identical to HSVBinarization.
+ */
+public class CompiledHSVBinarization {
+    private static final int BAND_HEIGHT = 64;
+    private static final Map<List<Pair<Scalar, Scalar>>, CompiledHSVBinarization> CACHE =
+            new ConcurrentHashMap<>();
+
+    // bit (b << 16 | g << 8 | r) is set if the BGR color hits some target
+    private final long[] hits;
+
+    private CompiledHSVBinarization(List<Pair<Scalar, Scalar>> targetsAndRanges) {
+        HSVBinarization binarization = new HSVBinarization(targetsAndRanges);
+        hits = new long[(1 << 24) / 64];
+
+        // every blue value gives a 256 x 256 image of all green (rows) and red (columns) values
+        IntStream.range(0, 256).parallel().forEach(b -> {
+            byte[] bgr = new byte[256 * 256 * 3];
+            for (int i = 0; i < 256 * 256; ++i) {
+                bgr[3 * i] = (byte) b;
+                bgr[3 * i + 1] = (byte) (i >> 8);
+                bgr[3 * i + 2] = (byte) i;
+            }
+            Mat colors = new Mat(256, 256, CvType.CV_8UC3);
+            colors.put(0, 0, bgr);
+            Imgproc.cvtColor(colors, colors, Imgproc.COLOR_BGR2HSV);
+            colors.get(0, 0, bgr);
+            colors.release();
+
+            for (int i = 0; i < 256 * 256; ++i) {
+                if (binarization.isHitting(bgr[3 * i] & 0xFF, bgr[3 * i + 1] & 0xFF, bgr[3 * i + 2] & 0xFF)) {
+                    int index = b << 16 | i;
+                    hits[index >> 6] |= 1L << (index & 63);
+                }
+            }
+        });
+    }
+
+    // the compiled tables are cached by the targets
+    public static CompiledHSVBinarization of(List<Pair<Scalar, Scalar>> targetsAndRanges) {
+        return CACHE.computeIfAbsent(new ArrayList<>(targetsAndRanges), CompiledHSVBinarization::new);
+    }
+
+    // input - CV_8UC3 or CV_16UC3 BGR image, 16-bit images are scaled to 8 bits first
+    public Mat apply(Mat input) {
+        Mat converted = Helper.to8Bit(input);
+        if (converted != input) {
+            Mat output = apply(converted);
+            converted.release();
+
+            return output;
+        }
+
+        int width = input.cols();
+        int height = input.rows();
+
+        byte[] bgr = new byte[width * height * 3];
+        if (input.isContinuous()) {
+            input.get(0, 0, bgr);
+        } else {
+            Mat continuous = input.clone();
+            continuous.get(0, 0, bgr);
+            continuous.release();
+        }
+
+        byte[] mask = new byte[width * height];
+        int bands = (height + BAND_HEIGHT - 1) / BAND_HEIGHT;
+        IntStream.range(0, bands).parallel().forEach(band -> {
+            int from = band * BAND_HEIGHT * width;
+            int to = Math.min(height, (band + 1) * BAND_HEIGHT) * width;
+            for (int i = from; i < to; ++i) {
+                int index = (bgr[3 * i] & 0xFF) << 16 | (bgr[3 * i + 1] & 0xFF) << 8 | (bgr[3 * i + 2] & 0xFF);
+                if ((hits[index >> 6] & 1L << (index & 63)) != 0) {
+                    mask[i] = (byte) 255;
+                }
+            }
+        });
+
+        Mat output = new Mat(height, width, CvType.CV_8UC1);
+        output.put(0, 0, mask);
+
+        return output;
+    }
+}
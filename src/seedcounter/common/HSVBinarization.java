@@ -1,6 +1,7 @@
 package seedcounter.common;
 
 import java.util.List;
+import java.util.stream.IntStream;
 
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
@@ -10,43 +11,79 @@ import org.opencv.imgproc.Imgproc;
 import javafx.util.Pair;
 
 public class HSVBinarization {
-    private final List<Pair<Scalar, Scalar>> targetsAndRanges;
+    // rows processed by one task
+    private static final int BAND_HEIGHT = 64;
+
+    // the number of 64-bit words holding one bit per target
+    private final int words;
+    /*
+     * per channel lookup tables: bit t of channelMasks[c][v * words + t / 64] is set
+     * if |v - target_t[c]| < range_t[c], a pixel hits if some target has the bit set in all channels
+     */
+    private final long[][] channelMasks;
 
     public HSVBinarization(List<Pair<Scalar, Scalar>> targetsAndRanges) {
-        this.targetsAndRanges = targetsAndRanges;
+        this.words = Math.max(1, (targetsAndRanges.size() + 63) / 64);
+        this.channelMasks = new long[3][256 * words];
+
+        for (int t = 0; t < targetsAndRanges.size(); ++t) {
+            Scalar target = targetsAndRanges.get(t).getKey();
+            Scalar range = targetsAndRanges.get(t).getValue();
+            for (int c = 0; c < 3; ++c) {
+                for (int v = 0; v < 256; ++v) {
+                    if (Math.abs(v - target.val[c]) < range.val[c]) {
+                        channelMasks[c][v * words + t / 64] |= 1L << (t % 64);
+                    }
+                }
+            }
+        }
     }
 
 
+    // input - CV_8UC3 or CV_16UC3 BGR image, 16-bit images are scaled to 8 bits first
     public Mat apply(Mat input) {
         int width = input.cols();
         int height = input.rows();
 
-        Mat hsvImg = new Mat(height, width, CvType.CV_8UC3);
-        Imgproc.cvtColor(input, hsvImg, Imgproc.COLOR_BGR2HSV);
-
-        Mat output = new Mat(height, width, CvType.CV_8UC1);
-        for(int i=0; i<hsvImg.rows(); i++) {
-            for(int j=0; j<hsvImg.cols(); j++) {
-                double[] value = hsvImg.get(i, j);
+        // the HSV image has the depth of its input, the tables are for 8-bit values
+        Mat converted = Helper.to8Bit(input);
+        Mat hsvImg = new Mat();
+        Imgproc.cvtColor(converted, hsvImg, Imgproc.COLOR_BGR2HSV);
+        if (converted != input) {
+            converted.release();
+        }
 
-                boolean hitting = false;
-                for(Pair<Scalar, Scalar> targetAndRange : targetsAndRanges) {
-                    Scalar target = targetAndRange.getKey();
-                    Scalar range = targetAndRange.getValue();
+        byte[] hsv = new byte[width * height * 3];
+        hsvImg.get(0, 0, hsv);
+        hsvImg.release();
 
-                    if(Math.abs(value[0]-target.val[0])<range.val[0] && Math.abs(value[1]-target.val[1])<range.val[1] && Math.abs(value[2]-target.val[2])<range.val[2])
-                        hitting = true;
+        byte[] mask = new byte[width * height];
+        int bands = (height + BAND_HEIGHT - 1) / BAND_HEIGHT;
+        IntStream.range(0, bands).parallel().forEach(band -> {
+            int from = band * BAND_HEIGHT * width;
+            int to = Math.min(height, (band + 1) * BAND_HEIGHT) * width;
+            for (int i = from; i < to; ++i) {
+                if (isHitting(hsv[3 * i] & 0xFF, hsv[3 * i + 1] & 0xFF, hsv[3 * i + 2] & 0xFF)) {
+                    mask[i] = (byte) 255;
                 }
+            }
+        });
 
-                if(hitting) {
-                    output.put(i, j, 255);
-                } else {
-                    output.put(i, j, 0);
-                }
+        Mat output = new Mat(height, width, CvType.CV_8UC1);
+        output.put(0, 0, mask);
+
+        return output;
+    }
+
+    boolean isHitting(int h, int s, int v) {
+        for (int w = 0; w < words; ++w) {
+            if ((channelMasks[0][h * words + w] & channelMasks[1][s * words + w]
+                    & channelMasks[2][v * words + w]) != 0) {
+                return true;
             }
         }
 
-        return output;
+        return false;
     }
 
 }
@@ -9,6 +9,24 @@ import org.opencv.core.*;
 import org.opencv.imgproc.Imgproc;
 
 public class Helper {
+    /*
+     * image - CV_8UC3 or CV_16UC3, 16-bit images are scaled by 1/257 to a new CV_8UC3 Mat,
+     * 8-bit images are returned as is (release the result only if it isn't the image)
+     */
+    public static Mat to8Bit(Mat image) {
+        if (image.type() == CvType.CV_8UC3) {
+            return image;
+        }
+        if (image.type() != CvType.CV_16UC3) {
+            throw new IllegalArgumentException("Unsupported image type: " + CvType.typeToString(image.type()));
+        }
+
+        Mat result = new Mat();
+        image.convertTo(result, CvType.CV_8UC3, 1.0 / 257.0);
+
+        return result;
+    }
+
     public static Mat whiteThreshold(Mat image) {
         Mat result = image.clone();
         Imgproc.cvtColor(result, result, Imgproc.COLOR_BGR2GRAY);
@@ -19,23 +37,13 @@ public class Helper {
 
     public static Mat binarizeSeed(Mat image,
             List<Pair<Scalar, Scalar>> targetsAndRanges) {
-        HSVBinarization hsv = new HSVBinarization(targetsAndRanges);
-        return hsv.apply(image);
+        return CompiledHSVBinarization.of(targetsAndRanges).apply(image);
     }
 
+    // the image pixels under the non-zero mask pixels, zeros elsewhere, of the image type
     public static Mat filterByMask(Mat image, Mat mask) {
-        List<Mat> channels = new ArrayList<>();
-        Core.split(image, channels);
-        for (int i = 0; i < 3; ++i) {
-            Mat c = channels.get(i);
-            Core.bitwise_and(c, mask, c);
-            channels.set(i, c);
-        }
-        Mat filtered = new Mat(image.rows(), image.cols(), CvType.CV_8UC3);
-        Core.merge(channels, filtered);
-        for (Mat c : channels) {
-            c.release();
-        }
+        Mat filtered = Mat.zeros(image.size(), image.type());
+        image.copyTo(filtered, mask);
 
         return filtered;
     }
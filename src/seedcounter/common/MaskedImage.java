@@ -0,0 +1,261 @@
+package seedcounter.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.opencv.core.*;
+import org.opencv.imgproc.Imgproc;
+
+/*
+ * An 8-bit BGR image filtered by a mask, stored sparsely: the horizontal runs of the mask
+ * in every row and the colors of the run pixels only. Replaces the dense result of
+ * Helper.filterByMask, which is mostly zeros for the seed sectors.
+ */
+public class MaskedImage {
+    private final int rows;
+    private final int cols;
+    // the runs of the row y are rowRuns[y] ... rowRuns[y + 1] - 1
+    private final int[] rowRuns;
+    private final int[] runX;
+    private final int[] runLength;
+    // the index of the first pixel of every run, runPixels[runCount] is the pixel count
+    private final int[] runPixels;
+    // BGR, 3 bytes per pixel in the order of the runs
+    private final byte[] colors;
+
+    private MaskedImage(int rows, int cols, int[] rowRuns, int[] runX, int[] runLength,
+                        int[] runPixels, byte[] colors) {
+        this.rows = rows;
+        this.cols = cols;
+        this.rowRuns = rowRuns;
+        this.runX = runX;
+        this.runLength = runLength;
+        this.runPixels = runPixels;
+        this.colors = colors;
+    }
+
+    /*
+     * image - CV_8UC3 or CV_16UC3 (scaled to 8 bits, see Helper.to8Bit),
+     * mask - CV_8UC1 of the same size, non-zero pixels are kept
+     */
+    public static MaskedImage of(Mat image, Mat mask) {
+        if (mask.type() != CvType.CV_8UC1 || image.rows() != mask.rows() || image.cols() != mask.cols()) {
+            throw new IllegalArgumentException("Wrong mask type or size");
+        }
+        Mat converted = Helper.to8Bit(image);
+        if (converted != image) {
+            MaskedImage result = of(converted, mask);
+            converted.release();
+
+            return result;
+        }
+
+        int rows = mask.rows();
+        int cols = mask.cols();
+        byte[] maskData = new byte[rows * cols];
+        mask.get(0, 0, maskData);
+
+        int[] rowRuns = new int[rows + 1];
+        IntList runX = new IntList();
+        IntList runLength = new IntList();
+        for (int y = 0; y < rows; ++y) {
+            rowRuns[y] = runX.size();
+            int offset = y * cols;
+            int x = 0;
+            while (x < cols) {
+                while (x < cols && maskData[offset + x] == 0) {
+                    ++x;
+                }
+                int start = x;
+                while (x < cols && maskData[offset + x] != 0) {
+                    ++x;
+                }
+                if (x > start) {
+                    runX.add(start);
+                    runLength.add(x - start);
+                }
+            }
+        }
+        rowRuns[rows] = runX.size();
+
+        int runCount = runX.size();
+        int[] runPixels = new int[runCount + 1];
+        for (int run = 0; run < runCount; ++run) {
+            runPixels[run + 1] = runPixels[run] + runLength.get(run);
+        }
+
+        // only the rows with runs are read from the image
+        byte[] colors = new byte[3 * runPixels[runCount]];
+        byte[] row = new byte[3 * cols];
+        for (int y = 0; y < rows; ++y) {
+            if (rowRuns[y] == rowRuns[y + 1]) {
+                continue;
+            }
+            image.get(y, 0, row);
+            for (int run = rowRuns[y]; run < rowRuns[y + 1]; ++run) {
+                System.arraycopy(row, 3 * runX.get(run), colors, 3 * runPixels[run], 3 * runLength.get(run));
+            }
+        }
+
+        return new MaskedImage(rows, cols, rowRuns, runX.toArray(), runLength.toArray(), runPixels, colors);
+    }
+
+    public interface PixelVisitor {
+        void visit(int x, int y, int blue, int green, int red);
+    }
+
+    public int rows() {
+        return rows;
+    }
+
+    public int cols() {
+        return cols;
+    }
+
+    // the number of masked pixels
+    public int area() {
+        return runPixels[runX.length];
+    }
+
+    public int runCount() {
+        return runX.length;
+    }
+
+    // BGR colors of the masked pixels, in the row-major order
+    public byte[] getColors() {
+        return colors;
+    }
+
+    // the same mask with other colors (e.g. calibrated), colors - in the order of getColors
+    public MaskedImage withColors(byte[] colors) {
+        if (colors.length != this.colors.length) {
+            throw new IllegalArgumentException("Wrong number of colors");
+        }
+
+        return new MaskedImage(rows, cols, rowRuns, runX, runLength, runPixels, colors);
+    }
+
+    // visits the masked pixels in the row-major order
+    public void forEach(PixelVisitor visitor) {
+        for (int y = 0; y < rows; ++y) {
+            for (int run = rowRuns[y]; run < rowRuns[y + 1]; ++run) {
+                for (int i = 0, p = 3 * runPixels[run]; i < runLength[run]; ++i, p += 3) {
+                    visitor.visit(runX[run] + i, y, colors[p] & 0xFF, colors[p + 1] & 0xFF, colors[p + 2] & 0xFF);
+                }
+            }
+        }
+    }
+
+    // the bounding box of the masked pixels, empty if there are none
+    public Rect getBounds() {
+        int minX = cols;
+        int maxX = -1;
+        int minY = rows;
+        int maxY = -1;
+        for (int y = 0; y < rows; ++y) {
+            if (rowRuns[y] == rowRuns[y + 1]) {
+                continue;
+            }
+            minY = Math.min(minY, y);
+            maxY = y;
+            minX = Math.min(minX, runX[rowRuns[y]]);
+            int last = rowRuns[y + 1] - 1;
+            maxX = Math.max(maxX, runX[last] + runLength[last] - 1);
+        }
+
+        return maxY < 0 ? new Rect() : new Rect(minX, minY, maxX - minX + 1, maxY - minY + 1);
+    }
+
+    // the outer and inner contours of the mask (RETR_LIST, CHAIN_APPROX_SIMPLE) in the image coordinates
+    public List<MatOfPoint> getContours() {
+        List<MatOfPoint> contours = new ArrayList<>();
+        Rect bounds = getBounds();
+        if (bounds.area() == 0) {
+            return contours;
+        }
+
+        Mat boxMask = toMask(bounds);
+        Mat hierarchy = new Mat();
+        Imgproc.findContours(boxMask, contours, hierarchy, Imgproc.RETR_LIST, Imgproc.CHAIN_APPROX_SIMPLE,
+                new Point(bounds.x, bounds.y));
+        boxMask.release();
+        hierarchy.release();
+
+        return contours;
+    }
+
+    // CV_8UC1, 255 for the masked pixels
+    public Mat toMask() {
+        return toMask(new Rect(0, 0, cols, rows));
+    }
+
+    // CV_8UC3, the same as Helper.filterByMask for a 0/255 mask
+    public Mat toMat() {
+        Mat result = new Mat(rows, cols, CvType.CV_8UC3);
+        result.put(0, 0, boxColors(new Rect(0, 0, cols, rows)));
+
+        return result;
+    }
+
+    // the colors of the box in the row-major order, zeros for the pixels out of the mask
+    byte[] boxColors(Rect box) {
+        byte[] result = new byte[3 * (int) box.area()];
+        for (int y = box.y; y < box.y + box.height; ++y) {
+            int offset = (y - box.y) * box.width - box.x;
+            for (int run = rowRuns[y]; run < rowRuns[y + 1]; ++run) {
+                int from = Math.max(box.x, runX[run]);
+                int to = Math.min(box.x + box.width, runX[run] + runLength[run]);
+                if (from < to) {
+                    System.arraycopy(colors, 3 * (runPixels[run] + from - runX[run]),
+                            result, 3 * (offset + from), 3 * (to - from));
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private Mat toMask(Rect box) {
+        byte[] data = new byte[(int) box.area()];
+        for (int y = box.y; y < box.y + box.height; ++y) {
+            int offset = (y - box.y) * box.width - box.x;
+            for (int run = rowRuns[y]; run < rowRuns[y + 1]; ++run) {
+                int from = Math.max(box.x, runX[run]);
+                int to = Math.min(box.x + box.width, runX[run] + runLength[run]);
+                for (int x = from; x < to; ++x) {
+                    data[offset + x] = (byte) 255;
+                }
+            }
+        }
+
+        Mat result = new Mat(box.height, box.width, CvType.CV_8UC1);
+        result.put(0, 0, data);
+
+        return result;
+    }
+
+    private static class IntList {
+        private int[] data = new int[256];
+        private int size = 0;
+
+        void add(int value) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, 2 * data.length);
+            }
+            data[size++] = value;
+        }
+
+        int get(int i) {
+            return data[i];
+        }
+
+        int size() {
+            return size;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(data, size);
+        }
+    }
+}
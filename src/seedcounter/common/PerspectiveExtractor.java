@@ -0,0 +1,198 @@
+package seedcounter.common;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opencv.core.*;
+import org.opencv.imgproc.Imgproc;
+
+/*
+ * Perspective extraction for a series of images with the same quad (e.g. a fixed camera rig).
+ * The fixed-point remap tables are calculated once per quad and output size,
+ * the extraction itself is a single remap.
+ */
+public class PerspectiveExtractor {
+    private static final int DEFAULT_CAPACITY = 4;
+    // the maximal rectified image size, relative to the source image area
+    private static final double MAX_AREA_RATIO = 4.0;
+
+    private final int capacity;
+    private final Map<List<Double>, Mat[]> maps;
+
+    public PerspectiveExtractor() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    // capacity - the number of cached remap tables, the least recently used are released
+    public PerspectiveExtractor(int capacity) {
+        this.capacity = capacity;
+        this.maps = new LinkedHashMap<List<Double>, Mat[]>(capacity + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<Double>, Mat[]> eldest) {
+                if (size() > PerspectiveExtractor.this.capacity) {
+                    release(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    // the same as quad.getTransformedField(image, size)
+    public Mat getTransformedField(Mat image, Quad quad, Size size) {
+        List<Double> key = key(quad, size.width, size.height, 0.0, 0.0, 0.0);
+        Mat[] tables = maps.get(key);
+        if (tables == null) {
+            Mat transform = quad.getPerspectiveTransform(size);
+            tables = buildMaps(transform, size);
+            transform.release();
+            maps.put(key, tables);
+        }
+
+        return remap(image, tables);
+    }
+
+    /*
+     * rectifies the whole image to the grid with the fixed real size of a pixel
+     *   quad - the quad with the known real size (e.g. the color checker)
+     *   quadRealSize - the real size of the quad (e.g. in millimeters)
+     *   unitsPerPixel - the real size of a pixel of the result (e.g. millimeters per pixel)
+     */
+    public Mat rectify(Mat image, Quad quad, Size quadRealSize, double unitsPerPixel) {
+        List<Double> key = key(quad, image.cols(), image.rows(),
+                quadRealSize.width, quadRealSize.height, unitsPerPixel);
+        Mat[] tables = maps.get(key);
+        if (tables == null) {
+            Size quadSize = new Size(quadRealSize.width / unitsPerPixel, quadRealSize.height / unitsPerPixel);
+            Mat transform = quad.getPerspectiveTransform(quadSize);
+            Rect bounds = transformedBounds(image, transform);
+
+            if (bounds.area() > MAX_AREA_RATIO * image.total()) {
+                transform.release();
+                throw new IllegalStateException("Couldn't rectify the image given this quad");
+            }
+
+            Mat shift = Mat.eye(3, 3, CvType.CV_64F);
+            shift.put(0, 2, -bounds.x);
+            shift.put(1, 2, -bounds.y);
+            Mat shifted = new Mat();
+            Core.gemm(shift, transform, 1.0, new Mat(), 0.0, shifted);
+
+            tables = buildMaps(shifted, bounds.size());
+            transform.release();
+            shift.release();
+            shifted.release();
+            maps.put(key, tables);
+        }
+
+        return remap(image, tables);
+    }
+
+    public void release() {
+        for (Mat[] tables : maps.values()) {
+            release(tables);
+        }
+        maps.clear();
+    }
+
+    private Mat remap(Mat image, Mat[] tables) {
+        Mat result = new Mat();
+        Imgproc.remap(image, result, tables[0], tables[1], Imgproc.INTER_LINEAR);
+
+        return result;
+    }
+
+    // transform - from the source image to the result of the given size
+    private Mat[] buildMaps(Mat transform, Size size) {
+        int width = (int) size.width;
+        int height = (int) size.height;
+
+        // the destination pixel coordinates, built natively from a row of x and a column of y
+        Mat destination = coordinateGrid(width, height);
+
+        Mat inverse = transform.inv();
+        Mat source = new Mat();
+        Core.perspectiveTransform(destination, source, inverse);
+        destination.release();
+        inverse.release();
+
+        Mat map1 = new Mat();
+        Mat map2 = new Mat();
+        Imgproc.convertMaps(source, new Mat(), map1, map2, CvType.CV_16SC2);
+        source.release();
+
+        return new Mat[] {map1, map2};
+    }
+
+    // CV_32FC2 height x width, (x, y) at every pixel
+    private static Mat coordinateGrid(int width, int height) {
+        Mat xs = new Mat(1, width, CvType.CV_32F);
+        float[] row = new float[width];
+        for (int x = 0; x < width; ++x) {
+            row[x] = x;
+        }
+        xs.put(0, 0, row);
+
+        Mat ys = new Mat(height, 1, CvType.CV_32F);
+        float[] column = new float[height];
+        for (int y = 0; y < height; ++y) {
+            column[y] = y;
+        }
+        ys.put(0, 0, column);
+
+        Mat gridX = new Mat();
+        Mat gridY = new Mat();
+        Core.repeat(xs, height, 1, gridX);
+        Core.repeat(ys, 1, width, gridY);
+        xs.release();
+        ys.release();
+
+        Mat grid = new Mat();
+        Core.merge(Arrays.asList(gridX, gridY), grid);
+        gridX.release();
+        gridY.release();
+
+        return grid;
+    }
+
+    // the bounding box of the image corners mapped by the transform
+    private Rect transformedBounds(Mat image, Mat transform) {
+        MatOfPoint2f corners = new MatOfPoint2f(
+                new Point(0, 0), new Point(image.cols(), 0),
+                new Point(image.cols(), image.rows()), new Point(0, image.rows()));
+        MatOfPoint2f mapped = new MatOfPoint2f();
+        Core.perspectiveTransform(corners, mapped, transform);
+
+        double minX = Double.MAX_VALUE;
+        double minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE;
+        double maxY = -Double.MAX_VALUE;
+        for (Point p : mapped.toArray()) {
+            minX = Math.min(minX, p.x);
+            minY = Math.min(minY, p.y);
+            maxX = Math.max(maxX, p.x);
+            maxY = Math.max(maxY, p.y);
+        }
+        corners.release();
+        mapped.release();
+
+        return new Rect((int) Math.floor(minX), (int) Math.floor(minY),
+                (int) Math.ceil(maxX - minX), (int) Math.ceil(maxY - minY));
+    }
+
+    // everything the remap tables depend on, the real size and units are 0.0 for getTransformedField
+    private List<Double> key(Quad quad, double width, double height,
+                             double realWidth, double realHeight, double unitsPerPixel) {
+        return Arrays.asList(quad.tl().x, quad.tl().y, quad.tr().x, quad.tr().y,
+                quad.br().x, quad.br().y, quad.bl().x, quad.bl().y, width, height,
+                realWidth, realHeight, unitsPerPixel);
+    }
+
+    private static void release(Mat[] tables) {
+        for (Mat table : tables) {
+            table.release();
+        }
+    }
+}
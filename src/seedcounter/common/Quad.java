@@ -4,6 +4,7 @@ package seedcounter.common;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.Point;
+import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 
 /**
@@ -66,13 +67,21 @@ public class Quad {
         }
     }
 
-    // TODO: implement precise version
+    // even-odd rule, points on the border are not guaranteed to be inside
     public boolean isInside(Point point) {
-        double minX = Math.min(Math.min(tl.x, tr.x), Math.min(bl.x, br.x));
-        double minY = Math.min(Math.min(tl.y, tr.y), Math.min(bl.y, br.y));
-        double maxX = Math.max(Math.max(tl.x, tr.x), Math.max(bl.x, br.x));
-        double maxY = Math.max(Math.max(tl.y, tr.y), Math.max(bl.y, br.y));
-        return point.x >= minX && point.x <= maxX && point.y >= minY && point.y <= maxY;
+        Point[] points = getPoints();
+        boolean inside = false;
+
+        for (int i = 0, j = points.length - 1; i < points.length; j = i++) {
+            Point a = points[i];
+            Point b = points[j];
+            if ((a.y > point.y) != (b.y > point.y) &&
+                    point.x < (b.x - a.x) * (point.y - a.y) / (b.y - a.y) + a.x) {
+                inside = !inside;
+            }
+        }
+
+        return inside;
     }
 
     public double getArea() {
@@ -123,23 +132,43 @@ public class Quad {
     }
 
     public Mat getTransformedField(Mat image) {    	
-        // Define the destination image
-        Mat transformed = new Mat(image.rows(), image.cols(), image.type());
+        return getTransformedField(image, image.size());
+    }
 
-        // Corners of the destination image
-        Point[] quad_pts = new Point[4];
-        quad_pts[0] = new Point(0, 0);
-        quad_pts[1] = new Point(transformed.cols(), 0);
-        quad_pts[2] = new Point(transformed.cols(), transformed.rows());
-        quad_pts[3] = new Point(0, transformed.rows());
+    /**
+     * Extract the field bounded by the quad into an image of the given size.
+     * @param image is the source image.
+     * @param size is the size of the extracted field.
+     * @return the field transformed to the rectangle of the given size.
+     */
+    public Mat getTransformedField(Mat image, Size size) {
+        // Define the destination image
+        Mat transformed = new Mat(size, image.type());
 
         // Get transformation matrix
-        Mat transmtx = Imgproc.getPerspectiveTransform(new MatOfPoint2f(getPoints()),
-                new MatOfPoint2f(quad_pts));
+        Mat transmtx = getPerspectiveTransform(size);
 
         // Apply perspective transformation
         Imgproc.warpPerspective(image, transformed, transmtx, transformed.size());
+        transmtx.release();
 
         return transformed;
     }
+
+    /**
+     * Calculate the perspective transformation from the quad to the rectangle of the given size.
+     * @param size is the size of the destination rectangle.
+     * @return 3x3 transformation matrix.
+     */
+    public Mat getPerspectiveTransform(Size size) {
+        // Corners of the destination image
+        Point[] quad_pts = new Point[4];
+        quad_pts[0] = new Point(0, 0);
+        quad_pts[1] = new Point(size.width, 0);
+        quad_pts[2] = new Point(size.width, size.height);
+        quad_pts[3] = new Point(0, size.height);
+
+        return Imgproc.getPerspectiveTransform(new MatOfPoint2f(getPoints()),
+                new MatOfPoint2f(quad_pts));
+    }
 }
\ No newline at end of file
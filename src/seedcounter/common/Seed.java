@@ -0,0 +1,38 @@
+package seedcounter.common;
+
+import org.opencv.core.Rect;
+
+// a connected component of the seed mask
+public class Seed {
+    private final Rect boundingBox;
+    // pixel indexes (y * imageWidth + x) in the row-major order
+    private final int[] pixels;
+    private final int imageWidth;
+
+    public Seed(Rect boundingBox, int[] pixels, int imageWidth) {
+        this.boundingBox = boundingBox;
+        this.pixels = pixels;
+        this.imageWidth = imageWidth;
+    }
+
+    public Rect getBoundingBox() {
+        return boundingBox;
+    }
+
+    // pixels
+    public int getArea() {
+        return pixels.length;
+    }
+
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    public int getX(int i) {
+        return pixels[i] % imageWidth;
+    }
+
+    public int getY(int i) {
+        return pixels[i] / imageWidth;
+    }
+}
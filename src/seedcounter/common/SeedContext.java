@@ -0,0 +1,57 @@
+package seedcounter.common;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Per-call state of SeedUtils:
+ *   seedIds - the seed numbers source, e.g. one per image or one for the whole dataset
+ *   fields - the record fields shared by all rows ("column": "value"), e.g. file and camera,
+ *       "header" prints the column names before the first row of the call
+ *   xOffset, yOffset - added to the pixel coordinates, e.g. the position of the sector in the image
+ */
+public class SeedContext {
+    private final SeedIdAllocator seedIds;
+    private final Map<String, String> fields;
+    private final int xOffset;
+    private final int yOffset;
+
+    public SeedContext(SeedIdAllocator seedIds, Map<String, String> fields) {
+        this(seedIds, fields, 0, 0);
+    }
+
+    public SeedContext(SeedIdAllocator seedIds, Map<String, String> fields, int xOffset, int yOffset) {
+        this.seedIds = seedIds;
+        this.fields = Collections.unmodifiableMap(new HashMap<>(fields));
+        this.xOffset = xOffset;
+        this.yOffset = yOffset;
+    }
+
+    public SeedContext withOffsets(int xOffset, int yOffset) {
+        return new SeedContext(seedIds, fields, xOffset, yOffset);
+    }
+
+    public SeedContext withField(String key, String value) {
+        Map<String, String> result = new HashMap<>(fields);
+        result.put(key, value);
+
+        return new SeedContext(seedIds, result, xOffset, yOffset);
+    }
+
+    public SeedIdAllocator getSeedIds() {
+        return seedIds;
+    }
+
+    public Map<String, String> getFields() {
+        return fields;
+    }
+
+    public int getXOffset() {
+        return xOffset;
+    }
+
+    public int getYOffset() {
+        return yOffset;
+    }
+}
@@ -0,0 +1,57 @@
+package seedcounter.common;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
+
+/*
+ * Splits the seed mask into connected components (8-connectivity) with a single
+ * labeling pass, the pixels are grouped by seeds with one more pass over the labels.
+ * The total cost is linear in the image size and doesn't depend on the number of seeds.
+ */
+public class SeedExtractor {
+    // mask - CV_8UC1, non-zero pixels are seeds; seeds are ordered by the first pixel (row-major)
+    public static List<Seed> extract(Mat mask) {
+        Mat labels = new Mat();
+        Mat stats = new Mat();
+        Mat centroids = new Mat();
+        int count = Imgproc.connectedComponentsWithStats(mask, labels, stats, centroids, 8, CvType.CV_32S);
+        centroids.release();
+
+        int width = mask.cols();
+        int[] labelData = new int[(int) labels.total()];
+        labels.get(0, 0, labelData);
+        labels.release();
+
+        int[] statData = new int[count * Imgproc.CC_STAT_MAX];
+        stats.get(0, 0, statData);
+        stats.release();
+
+        // the label 0 is the background
+        int[][] pixels = new int[count][];
+        for (int label = 1; label < count; ++label) {
+            pixels[label] = new int[statData[label * Imgproc.CC_STAT_MAX + Imgproc.CC_STAT_AREA]];
+        }
+        int[] filled = new int[count];
+        for (int i = 0; i < labelData.length; ++i) {
+            int label = labelData[i];
+            if (label != 0) {
+                pixels[label][filled[label]++] = i;
+            }
+        }
+
+        List<Seed> seeds = new ArrayList<>(Math.max(0, count - 1));
+        for (int label = 1; label < count; ++label) {
+            int offset = label * Imgproc.CC_STAT_MAX;
+            Rect boundingBox = new Rect(statData[offset + Imgproc.CC_STAT_LEFT], statData[offset + Imgproc.CC_STAT_TOP],
+                    statData[offset + Imgproc.CC_STAT_WIDTH], statData[offset + Imgproc.CC_STAT_HEIGHT]);
+            seeds.add(new Seed(boundingBox, pixels[label], width));
+        }
+
+        return seeds;
+    }
+}
@@ -0,0 +1,26 @@
+package seedcounter.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// lock-free allocation of consecutive seed number blocks, shared by concurrent SeedUtils calls
+public class SeedIdAllocator {
+    private final AtomicLong next;
+
+    public SeedIdAllocator() {
+        this(0);
+    }
+
+    public SeedIdAllocator(long first) {
+        this.next = new AtomicLong(first);
+    }
+
+    // reserves count consecutive numbers, returns the first of them
+    public long reserve(int count) {
+        return next.getAndAdd(count);
+    }
+
+    // the first number not reserved yet
+    public long peek() {
+        return next.get();
+    }
+}
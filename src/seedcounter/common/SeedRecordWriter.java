@@ -0,0 +1,20 @@
+package seedcounter.common;
+
+import java.io.Closeable;
+import java.util.Map;
+
+/*
+ * Typed seed records in three tables:
+ *   images - image_id and the image level fields (file, camera, class, ...), the columns are fixed up front
+ *   seeds - image_id, seed_number, area, pixels (the exact pixel count, the pixels table may hold a sample)
+ *   pixels - image_id, seed_number, x, y, blue, green, red
+ * I/O errors are thrown as UncheckedIOException.
+ */
+public interface SeedRecordWriter extends Closeable {
+    // returns the id of the added image, fields - a subset of the image columns
+    int addImage(Map<String, String> fields);
+
+    void addSeed(int imageId, int seedNumber, double area, int pixelCount);
+
+    void addPixel(int imageId, int seedNumber, int x, int y, int blue, int green, int red);
+}
@@ -1,19 +1,28 @@
 package seedcounter.common;
 
 import javafx.util.Pair;
-import org.apache.commons.math3.stat.descriptive.rank.Percentile;
 import org.opencv.core.*;
 import org.opencv.imgproc.Imgproc;
 
 import java.io.PrintWriter;
 import java.util.*;
+import java.util.function.Function;
+import java.util.function.IntFunction;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 public class SeedUtils {
     public SeedUtils() {
         this(0.5, 150.0, true);
     }
 
+    /*
+     * threshold - the minimal part of its bounding box filled by a seed
+     * whiteThreshold - the maximal 10th percentile of the darkest channel of the seed pixels
+     *     in the image for filter, in 8-bit units for both CV_8UC3 and CV_16UC3 images
+     *     (16-bit images are scaled to 8 bits before the filter)
+     * filterByArea - only the seeds with the area in (MIN_AREA, MAX_AREA) are output
+     */
     public SeedUtils(double threshold, double whiteThreshold, boolean filterByArea) {
         this.threshold = threshold;
         this.whiteThreshold = whiteThreshold;
@@ -23,12 +32,27 @@ public class SeedUtils {
     private final double MIN_AREA = 5.0;
     private final double MAX_AREA = 30.0;
     private final double BRIGHTNESS_PERCENTILE = 10.0;
+    private static final int BOUNDARY_KERNEL_SIZE = 5;
+    private static final long DEFAULT_SAMPLE_SEED = 42L;
+    private static final List<Double> SUMMARY_PERCENTILES = Arrays.asList(10.0, 25.0, 75.0, 90.0);
+    // in the order of the image channels
+    private static final List<String> SUMMARY_RGB_CHANNELS = Arrays.asList("blue", "green", "red");
+    private static final List<String> SUMMARY_LAB_CHANNELS = Arrays.asList("l", "a", "b");
+    private static final List<String> SUMMARY_HSV_CHANNELS = Arrays.asList("h", "s", "v");
+    // the seed log fields set per seed or per row, the rest of the fields identify the image
+    private static final List<String> SEED_COLUMNS =
+            Arrays.asList("header", "seed_number", "area", "pixels", "x", "y", "blue", "green", "red");
 
     private final double threshold;
     private final double whiteThreshold;
     private final boolean filterByArea;
 
     private int seedNumber = 0;
+    private boolean parallel = false;
+    private int pixelSampleSize = 0;
+    private long sampleSeed = DEFAULT_SAMPLE_SEED;
+    // the minimal channel values of the current seed pixels in the image for filter, per thread
+    private final ThreadLocal<ChannelHistogram> brightness = ThreadLocal.withInitial(ChannelHistogram::new);
     private int xOffset = 0;
     private int yOffset = 0;
 
@@ -52,6 +76,40 @@ public class SeedUtils {
         return seedNumber;
     }
 
+    // seeds are processed concurrently, the output is the same as in the serial mode
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    /*
+     * pixelSampleSize - the maximal number of pixels output per seed (0 - all of them),
+     *     the pixels are chosen by the reservoir sampling, the exact pixel count
+     *     of the seed is output in the "pixels" column
+     */
+    public void setPixelSampleSize(int pixelSampleSize) {
+        if (pixelSampleSize < 0) {
+            throw new IllegalArgumentException("Wrong pixel sample size");
+        }
+        this.pixelSampleSize = pixelSampleSize;
+    }
+
+    public int getPixelSampleSize() {
+        return pixelSampleSize;
+    }
+
+    // the same sample seed, image and seed number give the same pixels
+    public void setSampleSeed(long sampleSeed) {
+        this.sampleSeed = sampleSeed;
+    }
+
+    public long getSampleSeed() {
+        return sampleSeed;
+    }
+
     public void setXOffset(int xOffset) {
         this.xOffset = xOffset;
     }
@@ -75,59 +133,351 @@ public class SeedUtils {
         );
 
     public static Mat getMask(Mat image, Double scale) {
-        Mat mask = Helper.binarizeSeed(image, SEED_TYPES);
-        Mat whiteMask = Helper.whiteThreshold(image);
-        Core.bitwise_and(mask, whiteMask, mask);
-        whiteMask.release();
+        Mat mask = getSeedColorMask(image);
+
+        int kernelSize = kernelSize(scale);
+        Morphology.close(mask, kernelSize);
+        Morphology.open(mask, kernelSize);
+
+        return mask;
+    }
 
+    private static int kernelSize(Double scale) {
         int kernelSize = scale == null ? 10 : (int)(1.5 / Math.sqrt(scale));
         if (kernelSize < 10) {
             kernelSize = 10;
         }
-        Mat kernel = Imgproc.getStructuringElement(Imgproc.MORPH_ELLIPSE, new Size(kernelSize, kernelSize));
 
-        Imgproc.morphologyEx(mask, mask, Imgproc.MORPH_CLOSE, kernel);
-        Imgproc.morphologyEx(mask, mask, Imgproc.MORPH_OPEN, kernel);
-        kernel.release();
+        return kernelSize;
+    }
+
+    private static Mat getSeedColorMask(Mat image) {
+        Mat converted = Helper.to8Bit(image);
+        Mat mask = Helper.binarizeSeed(converted, SEED_TYPES);
+        Mat whiteMask = Helper.whiteThreshold(converted);
+        Core.bitwise_and(mask, whiteMask, mask);
+        whiteMask.release();
+        if (converted != image) {
+            converted.release();
+        }
 
         return mask;
     }
 
+    /*
+     * the same as getMask(image, scale) with the closing and opening (the most expensive part)
+     * made on the mask downscaled by the factor (e.g. 4). The upsampled mask is taken as is
+     * inside the blobs and in the background, in the band of the factor width around the blob
+     * boundaries the full resolution color mask is used, cleaned by a small kernel.
+     * Blobs thinner than the kernel and close to its size may be kept or removed differently.
+     */
+    public static Mat getMask(Mat image, Double scale, int factor) {
+        if (factor <= 1) {
+            return getMask(image, scale);
+        }
+
+        Mat colorMask = getSeedColorMask(image);
+
+        Mat mask = new Mat();
+        Imgproc.resize(colorMask, mask, new Size(), 1.0 / factor, 1.0 / factor, Imgproc.INTER_AREA);
+        Imgproc.threshold(mask, mask, 127.0, 255.0, Imgproc.THRESH_BINARY);
+        int kernelSize = Math.max(1, Math.round((float) kernelSize(scale) / factor));
+        Morphology.close(mask, kernelSize);
+        Morphology.open(mask, kernelSize);
+
+        Imgproc.resize(mask, mask, image.size(), 0.0, 0.0, Imgproc.INTER_LINEAR);
+        Imgproc.threshold(mask, mask, 127.0, 255.0, Imgproc.THRESH_BINARY);
+
+        Mat band = boundaryBand(mask, factor);
+        Morphology.close(colorMask, BOUNDARY_KERNEL_SIZE);
+        Morphology.open(colorMask, BOUNDARY_KERNEL_SIZE);
+        colorMask.copyTo(mask, band);
+        colorMask.release();
+        band.release();
+
+        return mask;
+    }
+
+    // the pixels not farther than width from the mask boundary
+    private static Mat boundaryBand(Mat mask, int width) {
+        Mat kernel = Imgproc.getStructuringElement(Imgproc.MORPH_RECT, new Size(2 * width + 1, 2 * width + 1));
+        Mat dilated = new Mat();
+        Mat eroded = new Mat();
+        Imgproc.dilate(mask, dilated, kernel);
+        Imgproc.erode(mask, eroded, kernel);
+        kernel.release();
+
+        Core.subtract(dilated, eroded, dilated);
+        eroded.release();
+
+        return dilated;
+    }
+
     public static Mat filterByMask(Mat image, Mat mask) {
         return Helper.filterByMask(image, mask);
     }
 
     public int printSeeds(Mat image, Mat imageForFilter, PrintWriter writer,
                                   Map<String, String> data, Double scale) {
-        List<MatOfPoint> contours = Helper.getContours(imageForFilter);
-        Mat seedBuffer = Mat.zeros(image.rows(), image.cols(), CvType.CV_8UC1);
+        processSeeds(image, imageForFilter, null, scale,
+                (area, pixels) -> printSeedData(data, seedNumber++, area, pixels, xOffset, yOffset, writer));
 
-        for (MatOfPoint contour : contours) {
-            Double area = scale * Imgproc.contourArea(contour);
-            if (!filterByArea || (area < MAX_AREA && area > MIN_AREA)) {
-                List<Map<String,String>> seedData = getSeedData(contour, image, imageForFilter, seedBuffer);
-                if (!seedData.isEmpty()) {
-                    data.put("seed_number", String.valueOf(seedNumber++));
-                    data.put("area", area.toString());
-                    printSeedData(data, seedData, writer);
-                }
+        return seedNumber;
+    }
+
+    /*
+     * the same as printSeeds(image, imageForFilter, writer, data, scale) with the seeds
+     * taken as the connected components of the mask (so holes are not the seed pixels),
+     * the area is the pixel count
+     */
+    public int printSeeds(Mat image, Mat imageForFilter, Mat mask, PrintWriter writer,
+                          Map<String, String> data, Double scale) {
+        processSeeds(image, imageForFilter, mask, scale,
+                (area, pixels) -> printSeedData(data, seedNumber++, area, pixels, xOffset, yOffset, writer));
+
+        return seedNumber;
+    }
+
+    // the same seeds as printSeeds, written as the typed records of the image added to the writer
+    public int writeSeeds(Mat image, Mat imageForFilter, SeedRecordWriter writer, int imageId, Double scale) {
+        processSeeds(image, imageForFilter, null, scale,
+                (area, pixels) -> writeSeedData(writer, imageId, seedNumber++, area, pixels, xOffset, yOffset));
+
+        return seedNumber;
+    }
+
+    // the same seeds as printSeeds with the mask, written as the typed records of the image added to the writer
+    public int writeSeeds(Mat image, Mat imageForFilter, Mat mask, SeedRecordWriter writer,
+                          int imageId, Double scale) {
+        processSeeds(image, imageForFilter, mask, scale,
+                (area, pixels) -> writeSeedData(writer, imageId, seedNumber++, area, pixels, xOffset, yOffset));
+
+        return seedNumber;
+    }
+
+    /*
+     * the same seeds as printSeeds, one row per seed instead of a row per pixel:
+     * pixel count and mean, median and percentiles of every channel in RGB, Lab and HSV
+     * (e.g. lab_a_median, hsv_h_p90)
+     */
+    public int printSeedSummaries(Mat image, Mat imageForFilter, PrintWriter writer,
+                                  Map<String, String> data, Double scale) {
+        processSeeds(image, imageForFilter, null, scale,
+                (area, pixels) -> printSeedSummary(data, seedNumber++, area, pixels, writer));
+
+        return seedNumber;
+    }
+
+    // the same as printSeedSummaries with the seeds taken as the connected components of the mask
+    public int printSeedSummaries(Mat image, Mat imageForFilter, Mat mask, PrintWriter writer,
+                                  Map<String, String> data, Double scale) {
+        processSeeds(image, imageForFilter, mask, scale,
+                (area, pixels) -> printSeedSummary(data, seedNumber++, area, pixels, writer));
+
+        return seedNumber;
+    }
+
+    /*
+     * Reentrant versions: the offsets, the record fields and the seed numbers are taken
+     * from the context instead of this object, so the calls can run concurrently.
+     * The seeds of a call get consecutive numbers and are written as a single block.
+     *   mask - the seeds are the connected components of the mask, the contours of imageForFilter if null
+     * returns the number of written seeds
+     */
+    public int printSeeds(Mat image, Mat imageForFilter, Mat mask, PrintWriter writer,
+                          SeedContext context, Double scale) {
+        return printSeeds(collectSeeds(image, imageForFilter, mask, scale), writer, context);
+    }
+
+    public int writeSeeds(Mat image, Mat imageForFilter, Mat mask, SeedRecordWriter writer,
+                          int imageId, SeedContext context, Double scale) {
+        return writeSeeds(collectSeeds(image, imageForFilter, mask, scale), writer, imageId, context);
+    }
+
+    public int printSeedSummaries(Mat image, Mat imageForFilter, Mat mask, PrintWriter writer,
+                                  SeedContext context, Double scale) {
+        return printSeedSummaries(collectSeeds(image, imageForFilter, mask, scale), writer, context);
+    }
+
+    /*
+     * The same for the sparse masked images, the dense images aren't built. The seeds are
+     * the contours of the imageForFilter mask itself (not of its non-black pixels).
+     */
+    public int printSeeds(MaskedImage image, MaskedImage imageForFilter, PrintWriter writer,
+                          SeedContext context, Double scale) {
+        return printSeeds(collectSeeds(image, imageForFilter, scale), writer, context);
+    }
+
+    public int writeSeeds(MaskedImage image, MaskedImage imageForFilter, SeedRecordWriter writer,
+                          int imageId, SeedContext context, Double scale) {
+        return writeSeeds(collectSeeds(image, imageForFilter, scale), writer, imageId, context);
+    }
+
+    public int printSeedSummaries(MaskedImage image, MaskedImage imageForFilter, PrintWriter writer,
+                                  SeedContext context, Double scale) {
+        return printSeedSummaries(collectSeeds(image, imageForFilter, scale), writer, context);
+    }
+
+    private int printSeeds(List<Pair<Double, SeedPixels>> seeds, PrintWriter writer, SeedContext context) {
+        long first = context.getSeedIds().reserve(seeds.size());
+        Map<String, String> data = new HashMap<>(context.getFields());
+
+        synchronized (writer) {
+            for (int i = 0; i < seeds.size(); ++i) {
+                printSeedData(data, first + i, seeds.get(i).getKey(), seeds.get(i).getValue(),
+                        context.getXOffset(), context.getYOffset(), writer);
+            }
+        }
+
+        return seeds.size();
+    }
+
+    private int writeSeeds(List<Pair<Double, SeedPixels>> seeds, SeedRecordWriter writer,
+                           int imageId, SeedContext context) {
+        long first = context.getSeedIds().reserve(seeds.size());
+
+        synchronized (writer) {
+            for (int i = 0; i < seeds.size(); ++i) {
+                writeSeedData(writer, imageId, first + i, seeds.get(i).getKey(), seeds.get(i).getValue(),
+                        context.getXOffset(), context.getYOffset());
             }
+        }
+
+        return seeds.size();
+    }
+
+    private int printSeedSummaries(List<Pair<Double, SeedPixels>> seeds, PrintWriter writer,
+                                   SeedContext context) {
+        long first = context.getSeedIds().reserve(seeds.size());
+        Map<String, String> data = new HashMap<>(context.getFields());
+
+        synchronized (writer) {
+            for (int i = 0; i < seeds.size(); ++i) {
+                printSeedSummary(data, first + i, seeds.get(i).getKey(), seeds.get(i).getValue(), writer);
+            }
+        }
+
+        return seeds.size();
+    }
+
+    private interface SeedConsumer {
+        void accept(Double area, SeedPixels pixels);
+    }
+
+    private List<Pair<Double, SeedPixels>> collectSeeds(Mat image, Mat imageForFilter, Mat mask, Double scale) {
+        List<Pair<Double, SeedPixels>> seeds = new ArrayList<>();
+        processSeeds(image, imageForFilter, mask, scale, (area, pixels) -> seeds.add(new Pair<>(area, pixels)));
+
+        return seeds;
+    }
+
+    private List<Pair<Double, SeedPixels>> collectSeeds(MaskedImage image, MaskedImage imageForFilter,
+                                                        Double scale) {
+        List<MatOfPoint> contours = imageForFilter.getContours();
+        List<Pair<Double, SeedPixels>> seeds = new ArrayList<>();
+        processContours(contours, scale, contour -> {
+            Rect box = boundingBox(contour, imageForFilter.cols(), imageForFilter.rows());
+            return getSeedData(contour, box, image.boxColors(box), imageForFilter.boxColors(box));
+        }, (area, pixels) -> seeds.add(new Pair<>(area, pixels)));
+
+        return seeds;
+    }
+
+    /*
+     * mask - the seeds are the connected components of the mask, the contours of imageForFilter if null
+     * images - CV_8UC3 or CV_16UC3, 16-bit images are scaled to 8 bits (so are the output colors
+     * and the white threshold)
+     */
+    private void processSeeds(Mat image, Mat imageForFilter, Mat mask, Double scale, SeedConsumer consumer) {
+        Mat colors = Helper.to8Bit(image);
+        Mat colorsForFilter = imageForFilter == image ? colors : Helper.to8Bit(imageForFilter);
+        if (mask == null) {
+            processContours(colors, colorsForFilter, scale, consumer);
+        } else {
+            processComponents(colors, colorsForFilter, mask, scale, consumer);
+        }
+
+        if (colors != image) {
+            colors.release();
+        }
+        if (colorsForFilter != imageForFilter && colorsForFilter != colors) {
+            colorsForFilter.release();
+        }
+    }
+
+    private void processContours(Mat image, Mat imageForFilter, Double scale, SeedConsumer consumer) {
+        processContours(Helper.getContours(imageForFilter), scale, contour -> {
+            Rect box = boundingBox(contour, image.cols(), image.rows());
+            return getSeedData(contour, box, boxColors(image, box), boxColors(imageForFilter, box));
+        }, consumer);
+    }
+
+    // releases the contours
+    private void processContours(List<MatOfPoint> contours, Double scale,
+                                 Function<MatOfPoint, SeedPixels> seedData, SeedConsumer consumer) {
+        List<Double> areas = new ArrayList<>(contours.size());
+        for (MatOfPoint contour : contours) {
+            areas.add(scale * Imgproc.contourArea(contour));
+        }
+
+        emitSeeds(areas, i -> seedData.apply(contours.get(i)), consumer);
+
+        for (MatOfPoint contour : contours) {
             contour.release();
         }
+    }
 
-        seedBuffer.release();
+    // CV_8UC3 images
+    private void processComponents(Mat image, Mat imageForFilter, Mat mask, Double scale, SeedConsumer consumer) {
+        byte[] colors = new byte[(int) image.total() * 3];
+        byte[] colorsForFilter = new byte[(int) imageForFilter.total() * 3];
+        image.get(0, 0, colors);
+        imageForFilter.get(0, 0, colorsForFilter);
+
+        List<Seed> seeds = SeedExtractor.extract(mask);
+        List<Double> areas = new ArrayList<>(seeds.size());
+        for (Seed seed : seeds) {
+            areas.add(scale * seed.getArea());
+        }
 
-        return seedNumber;
+        emitSeeds(areas, i -> getSeedData(seeds.get(i), colors, colorsForFilter), consumer);
     }
 
-    private List<Map<String,String>> getSeedData(MatOfPoint contour, Mat image, Mat imageForFilter, Mat seedBuffer) {
-        Imgproc.drawContours(seedBuffer, Collections.singletonList(contour), 0,
-                new Scalar(255.0), Core.FILLED);
-        List<Map<String,String>> result = new ArrayList<>();
+    /*
+     * passes the accepted seeds to the consumer in the order of the candidates,
+     * in the parallel mode the seed data is collected concurrently before that
+     */
+    private void emitSeeds(List<Double> areas, IntFunction<SeedPixels> seedData, SeedConsumer consumer) {
+        IntFunction<SeedPixels> filtered = i -> {
+            Double area = areas.get(i);
+            return !filterByArea || (area < MAX_AREA && area > MIN_AREA) ? seedData.apply(i) : null;
+        };
+
+        if (!parallel) {
+            for (int i = 0; i < areas.size(); ++i) {
+                SeedPixels pixels = filtered.apply(i);
+                if (pixels != null && pixels.size() > 0) {
+                    consumer.accept(areas.get(i), pixels);
+                }
+            }
+            return;
+        }
+
+        List<SeedPixels> seeds = IntStream.range(0, areas.size()).parallel()
+                .mapToObj(filtered)
+                .collect(Collectors.toList());
+        for (int i = 0; i < areas.size(); ++i) {
+            SeedPixels pixels = seeds.get(i);
+            if (pixels != null && pixels.size() > 0) {
+                consumer.accept(areas.get(i), pixels);
+            }
+        }
+    }
 
-        int minX = image.cols() - 1;
+    private Rect boundingBox(MatOfPoint contour, int cols, int rows) {
+        int minX = cols - 1;
         int maxX = 0;
-        int minY = image.rows() - 1;
+        int minY = rows - 1;
         int maxY = 0;
 
         for (Point point : contour.toList()) {
@@ -145,50 +495,237 @@ public class SeedUtils {
             }
         }
 
-        List<Double> minChannelValues = new ArrayList<>();
-
-        for (int y = minY; y <= maxY; ++y) {
-            for (int x = minX; x <= maxX; ++x) {
-                if (seedBuffer.get(y, x)[0] > 0.0) {
-                    double[] color = image.get(y, x);
-                    double[] colorForFilter = imageForFilter.get(y, x);
-                    if (color[0] + color[1] + color[2] > 0.0) {
-                        Map<String,String> map = new HashMap<>();
-                        map.put("x", String.valueOf(x + xOffset));
-                        map.put("y", String.valueOf(y + yOffset));
-                        map.put("blue", String.valueOf(color[0]));
-                        map.put("green", String.valueOf(color[1]));
-                        map.put("red", String.valueOf(color[2]));
-                        minChannelValues.add(Math.min(colorForFilter[0], Math.min(colorForFilter[1], colorForFilter[2])));
-                        result.add(map);
-                    }
+        return new Rect(minX, minY, maxX - minX + 1, maxY - minY + 1);
+    }
+
+    // colors, colorsForFilter - CV_8UC3 data of the box
+    private SeedPixels getSeedData(MatOfPoint contour, Rect box, byte[] colors, byte[] colorsForFilter) {
+        SeedPixels result = new SeedPixels();
+        int minX = box.x;
+        int minY = box.y;
+
+        // the filled contour in its bounding box
+        Mat seedBuffer = Mat.zeros(box.height, box.width, CvType.CV_8UC1);
+        Imgproc.drawContours(seedBuffer, Collections.singletonList(contour), 0,
+                new Scalar(255.0), Core.FILLED, Imgproc.LINE_8, new Mat(), Integer.MAX_VALUE, new Point(-minX, -minY));
+        byte[] inside = new byte[(int) box.area()];
+        seedBuffer.get(0, 0, inside);
+        seedBuffer.release();
+
+        ChannelHistogram brightness = this.brightness.get();
+        brightness.clear();
+
+        for (int i = 0; i < inside.length; ++i) {
+            if (inside[i] != 0) {
+                int blue = colors[3 * i] & 0xFF;
+                int green = colors[3 * i + 1] & 0xFF;
+                int red = colors[3 * i + 2] & 0xFF;
+                if (blue + green + red > 0) {
+                    result.add(minX + i % box.width, minY + i / box.width, blue, green, red);
+                    brightness.add(Math.min(colorsForFilter[3 * i] & 0xFF,
+                            Math.min(colorsForFilter[3 * i + 1] & 0xFF, colorsForFilter[3 * i + 2] & 0xFF)));
                 }
             }
         }
 
-        Imgproc.drawContours(seedBuffer, Collections.singletonList(contour), 0,
-                new Scalar(0.0), Core.FILLED);
+        if (!isAccepted(result.size(), box.area(), brightness)) {
+            result.clear();
+        }
+
+        return result;
+    }
+
+    // the box data of a CV_8UC3 image, see processSeeds
+    private byte[] boxColors(Mat image, Rect box) {
+        Mat boxImage = image.submat(box).clone();
+        byte[] colors = new byte[(int) box.area() * 3];
+        boxImage.get(0, 0, colors);
+        boxImage.release();
+
+        return colors;
+    }
+
+    // the seed fills enough of its bounding box and isn't too bright
+    private boolean isAccepted(int pixelCount, double boxArea, ChannelHistogram brightness) {
+        if (pixelCount / boxArea < threshold) {
+            return false;
+        }
 
-        if (result.size() / (maxX - minX + 1.0) / (maxY - minY + 1.0) < threshold) {
+        return brightness.legacyPercentile(BRIGHTNESS_PERCENTILE) <= whiteThreshold;
+    }
+
+    private SeedPixels getSeedData(Seed seed, byte[] colors, byte[] colorsForFilter) {
+        SeedPixels result = new SeedPixels();
+        ChannelHistogram brightness = this.brightness.get();
+        brightness.clear();
+
+        int[] pixels = seed.getPixels();
+        for (int i = 0; i < pixels.length; ++i) {
+            int blue = colors[3 * pixels[i]] & 0xFF;
+            int green = colors[3 * pixels[i] + 1] & 0xFF;
+            int red = colors[3 * pixels[i] + 2] & 0xFF;
+            if (blue + green + red > 0) {
+                result.add(seed.getX(i), seed.getY(i), blue, green, red);
+                brightness.add(Math.min(colorsForFilter[3 * pixels[i]] & 0xFF,
+                        Math.min(colorsForFilter[3 * pixels[i] + 1] & 0xFF, colorsForFilter[3 * pixels[i] + 2] & 0xFF)));
+            }
+        }
+
+        if (!isAccepted(result.size(), seed.getBoundingBox().area(), brightness)) {
             result.clear();
-        } else {
-            Percentile percentile = new Percentile();
-            percentile.setData(minChannelValues.stream().mapToDouble(x -> x).toArray());
+        }
+
+        return result;
+    }
+
+    private void printSeedData(Map<String,String> data, long number, Double area, SeedPixels pixels,
+                               int xOffset, int yOffset, PrintWriter writer) {
+        data.put("seed_number", String.valueOf(number));
+        data.put("area", area.toString());
+        if (pixelSampleSize > 0) {
+            data.put("pixels", String.valueOf(pixels.size()));
+        }
+        long image = pixelSampleSize > 0 ? imageKey(data) : 0;
+        for (int i : sampleIndexes(image, number, pixels.size())) {
+            data.put("x", String.valueOf(pixels.getX(i) + xOffset));
+            data.put("y", String.valueOf(pixels.getY(i) + yOffset));
+            data.put("blue", String.valueOf((double) pixels.getBlue(i)));
+            data.put("green", String.valueOf((double) pixels.getGreen(i)));
+            data.put("red", String.valueOf((double) pixels.getRed(i)));
+            printMap(writer, data);
+        }
+    }
+
+    private void printSeedSummary(Map<String,String> data, long number, Double area, SeedPixels pixels,
+                                  PrintWriter writer) {
+        data.put("seed_number", String.valueOf(number));
+        data.put("area", area.toString());
+        data.put("pixels", String.valueOf(pixels.size()));
+
+        byte[] bgr = new byte[3 * pixels.size()];
+        for (int i = 0; i < pixels.size(); ++i) {
+            bgr[3 * i] = (byte) pixels.getBlue(i);
+            bgr[3 * i + 1] = (byte) pixels.getGreen(i);
+            bgr[3 * i + 2] = (byte) pixels.getRed(i);
+        }
+        putSummary(data, "rgb", SUMMARY_RGB_CHANNELS, bgr);
+
+        Mat colors = new Mat(1, pixels.size(), CvType.CV_8UC3);
+        colors.put(0, 0, bgr);
+        Mat converted = new Mat();
+        byte[] values = new byte[bgr.length];
+        Imgproc.cvtColor(colors, converted, Imgproc.COLOR_BGR2Lab);
+        converted.get(0, 0, values);
+        putSummary(data, "lab", SUMMARY_LAB_CHANNELS, values);
+        Imgproc.cvtColor(colors, converted, Imgproc.COLOR_BGR2HSV);
+        converted.get(0, 0, values);
+        putSummary(data, "hsv", SUMMARY_HSV_CHANNELS, values);
+        colors.release();
+        converted.release();
+
+        printMap(writer, data);
+    }
+
+    // values - 3 channel pixels
+    private void putSummary(Map<String,String> data, String space, List<String> channels, byte[] values) {
+        for (int c = 0; c < channels.size(); ++c) {
+            ChannelHistogram histogram = new ChannelHistogram();
+            for (int i = c; i < values.length; i += 3) {
+                histogram.add(values[i] & 0xFF);
+            }
+
+            String prefix = space + "_" + channels.get(c) + "_";
+            data.put(prefix + "mean", String.valueOf(histogram.mean()));
+            data.put(prefix + "median", String.valueOf(histogram.median()));
+            for (double p : SUMMARY_PERCENTILES) {
+                data.put(prefix + "p" + (int) p, String.valueOf(histogram.percentile(p)));
+            }
+        }
+    }
 
-            if (percentile.evaluate(BRIGHTNESS_PERCENTILE) > whiteThreshold) {
-                result.clear();
+    private void writeSeedData(SeedRecordWriter writer, int imageId, long seedNumber, Double area,
+                               SeedPixels pixels, int xOffset, int yOffset) {
+        int number = Math.toIntExact(seedNumber);
+        writer.addSeed(imageId, number, area, pixels.size());
+        for (int i : sampleIndexes(imageId, seedNumber, pixels.size())) {
+            writer.addPixel(imageId, number, pixels.getX(i) + xOffset, pixels.getY(i) + yOffset,
+                    pixels.getBlue(i), pixels.getGreen(i), pixels.getRed(i));
+        }
+    }
+
+    // indexes of the pixels to output: all of them or the reservoir sample in the raster order
+    private int[] sampleIndexes(long image, long number, int size) {
+        if (pixelSampleSize == 0 || size <= pixelSampleSize) {
+            return IntStream.range(0, size).toArray();
+        }
+
+        // seeded by the image and the seed number, so the sample doesn't depend on the processing order
+        // and the seeds with the same number in different images get different samples
+        long imageSeed = new SplittableRandom(sampleSeed + image).nextLong();
+        SplittableRandom random = new SplittableRandom(imageSeed + number);
+        int[] result = IntStream.range(0, pixelSampleSize).toArray();
+        for (int i = pixelSampleSize; i < size; ++i) {
+            int j = random.nextInt(i + 1);
+            if (j < pixelSampleSize) {
+                result[j] = i;
             }
         }
+        Arrays.sort(result);
 
         return result;
     }
 
-    private void printSeedData(Map<String,String> data, List<Map<String,String>> seedData, PrintWriter writer) {
-        for (Map<String,String> map : seedData) {
-            for (String key : map.keySet()) {
-                data.put(key, map.get(key));
+    // the image of the seed log fields: the hash of all the fields except the seed columns
+    private static long imageKey(Map<String,String> data) {
+        Map<String,String> fields = new TreeMap<>(data);
+        fields.keySet().removeAll(SEED_COLUMNS);
+
+        return fields.hashCode();
+    }
+
+    // the accepted pixels of a seed: coordinates (without the offsets) and BGR colors
+    private static class SeedPixels {
+        private int[] data = new int[5 * 64];
+        private int size = 0;
+
+        void add(int x, int y, int blue, int green, int red) {
+            if (5 * (size + 1) > data.length) {
+                data = Arrays.copyOf(data, 2 * data.length);
             }
-            printMap(writer, data);
+            data[5 * size] = x;
+            data[5 * size + 1] = y;
+            data[5 * size + 2] = blue;
+            data[5 * size + 3] = green;
+            data[5 * size + 4] = red;
+            ++size;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int getX(int i) {
+            return data[5 * i];
+        }
+
+        int getY(int i) {
+            return data[5 * i + 1];
+        }
+
+        int getBlue(int i) {
+            return data[5 * i + 2];
+        }
+
+        int getGreen(int i) {
+            return data[5 * i + 3];
+        }
+
+        int getRed(int i) {
+            return data[5 * i + 4];
         }
     }
 
@@ -0,0 +1,31 @@
+package seedcounter.common;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+// the pixels table as PREFIX_pixels.tsv
+public class TsvSeedRecordWriter extends AbstractSeedRecordWriter {
+    private final Writer pixels;
+    private final StringBuilder row = new StringBuilder();
+
+    public TsvSeedRecordWriter(String prefix, List<String> imageColumns) throws IOException {
+        super(prefix, imageColumns);
+        pixels = openTsv(prefix + "_pixels.tsv");
+        pixels.write("image_id\tseed_number\tx\ty\tblue\tgreen\tred\n");
+    }
+
+    @Override
+    public void addPixel(int imageId, int seedNumber, int x, int y, int blue, int green, int red) {
+        row.setLength(0);
+        row.append(imageId).append('\t').append(seedNumber).append('\t').append(x).append('\t').append(y)
+                .append('\t').append(blue).append('\t').append(green).append('\t').append(red).append('\n');
+        write(pixels, row.toString());
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        pixels.close();
+    }
+}
@@ -24,7 +24,9 @@ class BackgroundSegmentation {
     private static final String INPUT_FILES = "src/seedcounter/examples/input_files.txt";
     private static final String RESULT_DIR = "src/seedcounter/examples/background_segmentation_results";
     private static final String REFERENCE_FILE = "reference.png";
-    private static final Clusterizer clusterizer = new Clusterizer(3);
+    // the clusters are fitted on a subsample of the pixels
+    private static final int SAMPLE_SIZE = 100000;
+    private static final Clusterizer clusterizer = new Clusterizer(3, SAMPLE_SIZE);
 
     public static void main(String[] args) {
         System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
@@ -27,10 +27,39 @@ class BackgroundVariance {
     private static final String INPUT_FILES = "src/seedcounter/examples/input_files.txt";
     private static final String RESULT_FILE = "src/seedcounter/examples/background_variance_results.tsv";
     private static final String REFERENCE_FILE = "reference.png";
-    private static final Clusterizer clusterizer = new Clusterizer(2);
+    // the clusters are fitted on a subsample of the pixels
+    private static final int SAMPLE_SIZE = 100000;
+    private static final Clusterizer clusterizer = new Clusterizer(2, SAMPLE_SIZE);
+
+    // the clustering of the source image, the same for all the regression orders and color spaces
+    private static class BeforeClustering {
+        private final Mat samples;
+        private final Mat[] clusters;
+        private final double variance;
+
+        BeforeClustering(Mat image) {
+            samples = clusterizer.getClusteringSamples(image);
+            clusters = clusterizer.clusterize(samples);
+            variance = clusterizer.getBackgroundVariance(samples, clusters[0]);
+        }
+
+        Mat getLabels() {
+            return clusters[0];
+        }
+
+        double getVariance() {
+            return variance;
+        }
+
+        void release() {
+            samples.release();
+            clusters[0].release();
+            clusters[1].release();
+        }
+    }
 
     private static void iterateColorspaces(String inputFile, PrintWriter outputFile, RegressionModel model, Mat image,
-                                           ColorChecker checker, Mat beforeSamples, Mat[] beforeClusters) {
+                                           ColorChecker checker, BeforeClustering before) {
         for (ColorSpace featuresSpace : ColorSpace.values()) {
             for (ColorSpace targetSpace : ColorSpace.values()) {
                 if (model.getClass() == IdentityModel.class &&
@@ -49,8 +78,8 @@ class BackgroundVariance {
                 Mat afterSamples = clusterizer.getClusteringSamples(calibrated);
                 calibrated.release();
 
-                double varianceChange = clusterizer.getBackgroundVariance(afterSamples, beforeClusters[0]) /
-                        (clusterizer.getBackgroundVariance(beforeSamples, beforeClusters[0]) + 1e-5);
+                double varianceChange = clusterizer.getBackgroundVariance(afterSamples, before.getLabels()) /
+                        (before.getVariance() + 1e-5);
                 afterSamples.release();
 
                 outputFile.println(inputFile + "\t" + model.getName() + "\t" + featuresSpace.name() +
@@ -93,21 +122,16 @@ class BackgroundVariance {
             Quad quad = findColorChecker.findColorChecker(image);
             Mat extractedColorChecker = quad.getTransformedField(image);
             ColorChecker checker = new ColorChecker(extractedColorChecker);
+            BeforeClustering before = new BeforeClustering(image);
 
             for (Order order : Order.values()) {
                 System.out.println(order);
                 RegressionModel model = RegressionFactory.createModel(order);
 
-                Mat beforeSamples = clusterizer.getClusteringSamples(image);
-                Mat[] beforeClusters = clusterizer.clusterize(beforeSamples);
-
-                iterateColorspaces(inputFile, outputFile, model, image, checker, beforeSamples, beforeClusters);
-
-                beforeSamples.release();
-                beforeClusters[0].release();
-                beforeClusters[1].release();
+                iterateColorspaces(inputFile, outputFile, model, image, checker, before);
             }
 
+            before.release();
             image.release();
             extractedColorChecker.release();
         }
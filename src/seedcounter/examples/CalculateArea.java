@@ -11,6 +11,7 @@ import seedcounter.colorchecker.ColorChecker;
 import seedcounter.colorchecker.FindColorChecker;
 import seedcounter.colorchecker.MatchingModel;
 import seedcounter.common.Helper;
+import seedcounter.common.Morphology;
 import seedcounter.common.Quad;
 import seedcounter.regression.ColorSpace;
 import seedcounter.regression.RegressionFactory;
@@ -51,10 +52,7 @@ class CalculateArea {
 
     private static Mat getMask(Mat image) {
         Mat mask = Helper.binarizeSeed(image, POTATO_TYPES);
-        Mat kernel = Imgproc.getStructuringElement(Imgproc.MORPH_ELLIPSE,
-                new Size(150, 150));
-        Imgproc.morphologyEx(mask, mask, Imgproc.MORPH_CLOSE, kernel);
-        kernel.release();
+        Morphology.close(mask, 150);
 
         return mask;
     }
@@ -9,7 +9,10 @@ import org.opencv.imgcodecs.Imgcodecs;
 import seedcounter.colorchecker.ColorChecker;
 import seedcounter.colorchecker.FindColorChecker;
 import seedcounter.colorchecker.MatchingModel;
+import seedcounter.common.MaskedImage;
 import seedcounter.common.Quad;
+import seedcounter.common.SeedContext;
+import seedcounter.common.SeedIdAllocator;
 import seedcounter.common.SeedUtils;
 import seedcounter.regression.ColorSpace;
 import seedcounter.regression.RegressionFactory;
@@ -289,8 +292,8 @@ class SeedDatasetClustering {
                 }
             }
 
-            // Обнуляем счетчик номера зерна
-            seedUtils.setSeedNumber(0);
+            // Номера зерен считаются заново для каждого изображения
+            SeedIdAllocator seedIds = new SeedIdAllocator();
 
             for (Integer class_ : classes.keySet()){
                 File classDirectory = new File(resultDirectory.getAbsolutePath() + "/" + class_);
@@ -303,8 +306,9 @@ class SeedDatasetClustering {
                 // Маска с зернами. Вычисляется SeedUtils.getMask - вместо него можно вставить другой метод
                 // распознавания зерна (сейчас там применяется HSVBinarization+отсечение белого цвета+морфология)
                 Mat mask;
-                // Отфильтрованый по маске сектор (исходный или калиброваный), с которого берутся значения цветов
-                Mat colorData;
+                // Отфильтрованый по маске сектор (исходный или калиброваный), с которого берутся значения цветов.
+                // Хранятся только пиксели маски
+                MaskedImage colorData;
                 /* Отфильтрованый по маске сектор (исходный или калиброваный), по которому вычисляются контуры и дополнительные
                  * фильтрация по квантилю яркости (whiteThreshold). Может отличаться от colorData.
                  * Выделено отдельно от colorData, для возможности проведения согласованых экспериментов. Например,
@@ -312,24 +316,25 @@ class SeedDatasetClustering {
                  * изображению, а зерна выделяются по исходному, в forFilter должно быть пропущенное через маску
                  * исходное изображение - иначе количество распознанных зерен может различаться.
                  */
-                Mat forFilter;
+                MaskedImage forFilter;
 
                 // Калибровка сектора
                 if (checker != null) {
                     Mat calibrated;
                     try {
-                        calibrated = checker.calibrate(source, model, FEATURE_SPACE, TARGET_SPACE);
                         if (MASK_BY_CALIBRATED) {
+                            calibrated = checker.calibrate(source, model, FEATURE_SPACE, TARGET_SPACE);
                             mask = SeedUtils.getMask(calibrated, scale);
-                        } else {
-                            mask = SeedUtils.getMask(source, scale);
-                        }
-
-                        colorData = SeedUtils.filterByMask(calibrated, mask);
-                        if (MASK_BY_CALIBRATED) {
+                            colorData = MaskedImage.of(calibrated, mask);
                             forFilter = colorData;
                         } else {
-                            forFilter = SeedUtils.filterByMask(source, mask);
+                            // маска по исходному сектору - калибруются только пиксели маски
+                            mask = SeedUtils.getMask(source, scale);
+                            forFilter = MaskedImage.of(source, mask);
+                            colorData = checker.calibrate(forFilter, model, FEATURE_SPACE, TARGET_SPACE);
+                            // весь калиброванный сектор нужен только для записи изображений
+                            calibrated = LOG_IMAGES
+                                    ? checker.calibrate(source, model, FEATURE_SPACE, TARGET_SPACE) : null;
                         }
                         // удалось откалибровать
                         seedData.put("calibrated", "1");
@@ -339,7 +344,7 @@ class SeedDatasetClustering {
                         seedData.put("calibrated", "0");
                         System.out.println("Couldn't calibrate the image " + file.fileName() + " using the source...");
                         mask = SeedUtils.getMask(source, scale);
-                        colorData = SeedUtils.filterByMask(source, mask);
+                        colorData = MaskedImage.of(source, mask);
                         forFilter = colorData;
                         calibrated = source;
                     }
@@ -347,12 +352,14 @@ class SeedDatasetClustering {
                     if (LOG_IMAGES) {
                         Imgcodecs.imwrite(classDirectory.getAbsolutePath() + "/" + file.fileName(), calibrated);
                     }
-                    calibrated.release();
+                    if (calibrated != null) {
+                        calibrated.release();
+                    }
                 } else {
                     // калибровка не проводилась
                     seedData.put("calibrated", "0");
                     mask = SeedUtils.getMask(source, scale);
-                    colorData = SeedUtils.filterByMask(source, mask);
+                    colorData = MaskedImage.of(source, mask);
                     forFilter = colorData;
 
                     if (LOG_IMAGES) {
@@ -363,16 +370,15 @@ class SeedDatasetClustering {
 
                 seedData.put("class", class_.toString());
                 // Смещение, чтобы в лог писались не координаты пикселя в секторе, а координаты пикселя на всем изображении
-                seedUtils.setXOffset(file.xOffset(image, class_));
-                seedUtils.setYOffset(file.yOffset(image, class_));
+                SeedContext context = new SeedContext(seedIds, seedData,
+                        file.xOffset(image, class_), file.yOffset(image, class_));
                 // Пишем информацию о зернах в файл. Здесь же происходит вычисление контуров зерен, по отфильтрованному изображению
-                seedUtils.printSeeds(colorData, forFilter, seedLog, seedData, scale);
+                if (seedUtils.printSeeds(colorData, forFilter, seedLog, context, scale) > 0) {
+                    // заголовок пишется только перед первой записью
+                    seedData.remove("header");
+                }
 
                 mask.release();
-                colorData.release();
-                if (colorData != forFilter) {
-                    forFilter.release();
-                }
 
             }
 
@@ -6,6 +6,7 @@ import org.opencv.features2d.BRISK;
 import org.opencv.features2d.DescriptorMatcher;
 import org.opencv.imgcodecs.Imgcodecs;
 import seedcounter.colorchecker.ColorChecker;
+import seedcounter.colorchecker.ColorCheckerPresence;
 import seedcounter.colorchecker.FindColorChecker;
 import seedcounter.colorchecker.MatchingModel;
 import seedcounter.common.Quad;
@@ -60,6 +61,17 @@ class SeedsRetrieval {
         // default scale is calculated by A4 size
         double scale = (297.0 / 0.8 / image.cols()) * (210.0 / 0.85 / image.rows());
 
+        if (calibrate) {
+            // skip the keypoint detection on images without a color checker
+            ColorCheckerPresence.Decision presence = new ColorCheckerPresence().check(image);
+            seedData.put("colorchecker", presence.isPresent() ? "1" : "0");
+            seedData.put("colorchecker_confidence", String.valueOf(presence.getConfidence()));
+            if (!presence.isPresent()) {
+                System.out.println("Couldn't detect colorchecker: precheck confidence " + presence.getConfidence());
+                calibrate = false;
+            }
+        }
+
         if (calibrate) {
             Quad quad = findColorChecker.findBestFitColorChecker(image);
 